@@ -0,0 +1,372 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+* This class implements a pool of persistent connections towards the other
+* nodes of the chord ring, through which requests are sent without blocking
+* the thread which sends them.  Every exchange gives a future which is
+* completed by the channel group of the JVM once the response has arrived,
+* so no thread waits on a remote node in the meanwhile.
+*
+* Only the binary format is spoken.  A text-only node does not answer the
+* version byte, and the requests towards it fail as if it had not answered.
+* As in ConnectionPool, a bounded number of idle connections is kept per
+* peer, and those which have been idle for too long are closed.
+*
+* @author Vijay Kumar
+*/
+
+public class AsyncConnectionPool implements Runnable {
+    // Idle connections for each peer, most recently used first
+    private final Map<InetSocketAddress, Deque<Connection>> idleConnections;
+
+    // Maximum number of idle connections retained for a single peer
+    private final int maxIdlePerPeer;
+
+    // Time in milliseconds after which an idle connection is closed
+    private final long idleTimeout;
+
+    /**
+    * Initializes the pool and starts the thread which evicts idle connections.
+    *
+    * @param maxIdlePerPeer
+    *        Maximum number of idle connections retained for a single peer
+    * @param idleTimeout
+    *        Time in milliseconds after which an idle connection is closed
+    */
+    AsyncConnectionPool(int maxIdlePerPeer, long idleTimeout) {
+        this.idleConnections = new ConcurrentHashMap<>();
+        this.maxIdlePerPeer = maxIdlePerPeer;
+        this.idleTimeout = idleTimeout;
+
+        Thread evictor = new Thread(this, "AsyncConnectionPool-Evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+    * Sends the request to the given peer.  An idle connection is used if
+    * one is available, and if it turns out to be closed by the peer, the
+    * request is sent once more over a fresh connection, unless serving it
+    * twice could do harm, see NodeUtility.isIdempotent.
+    *
+    * @param  address
+    *         InetSocketAddress of the peer
+    * @param  request
+    *         request that needs to be served
+    * @param  timeout
+    *         time in milliseconds to wait for the response
+    * @return future completed with the response from the peer, or
+    *         exceptionally if there was any error in communication
+    */
+    public CompletableFuture<Message> exchange(InetSocketAddress address, Message request, long timeout) {
+        Connection idle = borrow(address);
+
+        if (idle == null) {
+            return open(address).thenCompose(connection -> exchange(connection, request, timeout));
+        }
+
+        return exchange(idle, request, timeout).handle((response, exception) -> {
+            Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+
+            if (exception == null) {
+                return CompletableFuture.completedFuture(response);
+            } else if (cause instanceof TimeoutException || !NodeUtility.isIdempotent(request)) {
+                // Peer has not answered in time, or may have served the request already
+                return CompletableFuture.<Message>failedFuture(cause);
+            }
+            return open(address).thenCompose(connection -> exchange(connection, request, timeout));
+        }).thenCompose(future -> future);
+    }
+
+    private CompletableFuture<Message> exchange(Connection connection, Message request, long timeout) {
+        return connection.exchange(request)
+                         .orTimeout(timeout, TimeUnit.MILLISECONDS)
+                         .whenComplete((response, exception) -> {
+                             if (exception == null) {
+                                 release(connection);
+                             } else {
+                                 connection.close();
+                             }
+                         });
+    }
+
+    /**
+    * Takes an idle connection towards the given peer, if there is one which
+    * has not been idle for too long.
+    */
+    private Connection borrow(InetSocketAddress address) {
+        Deque<Connection> connections = idleConnections.get(address);
+
+        if (connections != null) {
+            long now = System.currentTimeMillis();
+
+            while (true) {
+                Connection connection;
+                synchronized(connections) {
+                    connection = connections.pollFirst();
+                }
+
+                if (connection == null) {
+                    break;
+                } else if (now - connection.lastUsed < idleTimeout && connection.channel.isOpen()) {
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+    * Opens a fresh connection towards the given peer and agrees upon the
+    * binary format with it.
+    */
+    private CompletableFuture<Connection> open(InetSocketAddress address) {
+        Connection connection;
+        try {
+            connection = new Connection(address);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return connection.connect()
+                         .orTimeout(Protocol.HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS)
+                         .whenComplete((result, exception) -> {
+                             if (exception != null) {
+                                 connection.close();
+                             }
+                         });
+    }
+
+    /**
+    * Hands a connection back to the pool after a successful exchange.  If
+    * the peer already has enough idle connections, the connection is closed.
+    */
+    private void release(Connection connection) {
+        Deque<Connection> connections = idleConnections.computeIfAbsent(connection.address,
+                                                                         key -> new ArrayDeque<>());
+        connection.lastUsed = System.currentTimeMillis();
+
+        synchronized(connections) {
+            if (connections.size() < maxIdlePerPeer) {
+                connections.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+    * Periodically closes the connections which have been idle for too long.
+    */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(idleTimeout / 2, 1));
+            } catch (InterruptedException exception) {
+                exception.printStackTrace();
+            }
+
+            long now = System.currentTimeMillis();
+            for (Deque<Connection> connections : idleConnections.values()) {
+                synchronized(connections) {
+                    Iterator<Connection> iterator = connections.iterator();
+
+                    while (iterator.hasNext()) {
+                        Connection connection = iterator.next();
+
+                        if (now - connection.lastUsed >= idleTimeout) {
+                            connection.close();
+                            iterator.remove();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+    * A single persistent connection towards a peer, used by one exchange
+    * at a time, between borrow and release.
+    */
+    private static class Connection {
+        // InetSocketAddress of the peer on the other end
+        private final InetSocketAddress address;
+
+        private final AsynchronousSocketChannel channel;
+
+        // Buffer reused for the frames sent and received
+        private ByteBuffer buffer;
+
+        // Time at which the connection was handed back to the pool
+        private long lastUsed;
+
+        private Connection(InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.channel = AsynchronousSocketChannel.open();
+            this.buffer = ByteBuffer.allocate(256);
+        }
+
+        /**
+        * Connects to the peer, sends the version byte and checks its answer.
+        */
+        private CompletableFuture<Connection> connect() {
+            CompletableFuture<Void> connected = new CompletableFuture<>();
+            channel.connect(address, null, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(Void result, Void attachment) {
+                    connected.complete(null);
+                }
+
+                @Override
+                public void failed(Throwable exception, Void attachment) {
+                    connected.completeExceptionally(exception);
+                }
+            });
+
+            return connected.thenCompose(result -> {
+                buffer.clear();
+                buffer.put(Protocol.VERSION).flip();
+                return write(buffer);
+            }).thenCompose(result -> {
+                buffer.clear().limit(1);
+                return read(buffer);
+            }).thenApply(result -> {
+                int version = buffer.get(0);
+                if (version < 1 || version > Protocol.VERSION) {
+                    throw new IllegalStateException(new ProtocolException("Unexpected version " + version));
+                }
+                return this;
+            });
+        }
+
+        /**
+        * Sends a request and reads its response.
+        */
+        private CompletableFuture<Message> exchange(Message request) {
+            buffer = Protocol.encode(request, buffer);
+
+            return write(buffer).thenCompose(result -> readFrame());
+        }
+
+        /**
+        * Reads a complete frame, as many bytes at a time as have arrived,
+        * and decodes it.
+        */
+        private CompletableFuture<Message> readFrame() {
+            CompletableFuture<Message> frame = new CompletableFuture<>();
+            buffer.clear();
+
+            channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer count, Void attachment) {
+                    if (count < 0) {
+                        frame.completeExceptionally(new EOFException("Connection closed by " + address));
+                        return;
+                    }
+
+                    if (buffer.position() >= 4) {
+                        int length = buffer.getInt(0);
+
+                        if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                            frame.completeExceptionally(new ProtocolException("Invalid frame length " + length));
+                            return;
+                        } else if (buffer.position() >= 4 + length) {
+                            buffer.flip().position(4);
+                            try {
+                                frame.complete(Protocol.decode(buffer));
+                            } catch (IllegalArgumentException e) {
+                                frame.completeExceptionally(new ProtocolException(e.getMessage()));
+                            }
+                            return;
+                        } else if (buffer.capacity() < 4 + length) {
+                            buffer.flip();
+                            buffer = ByteBuffer.allocate(4 + length).put(buffer);
+                        }
+                    }
+                    channel.read(buffer, null, this);
+                }
+
+                @Override
+                public void failed(Throwable exception, Void attachment) {
+                    frame.completeExceptionally(exception);
+                }
+            });
+            return frame;
+        }
+
+        /**
+        * Writes the whole buffer, completing once nothing remains in it.
+        */
+        private CompletableFuture<Void> write(ByteBuffer source) {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+
+            channel.write(source, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer count, Void attachment) {
+                    if (source.hasRemaining()) {
+                        channel.write(source, null, this);
+                    } else {
+                        written.complete(null);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exception, Void attachment) {
+                    written.completeExceptionally(exception);
+                }
+            });
+            return written;
+        }
+
+        /**
+        * Fills the buffer up to its limit, completing once it is full.
+        */
+        private CompletableFuture<Void> read(ByteBuffer destination) {
+            CompletableFuture<Void> filled = new CompletableFuture<>();
+
+            channel.read(destination, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer count, Void attachment) {
+                    if (count < 0) {
+                        filled.completeExceptionally(new EOFException("Connection closed by " + address));
+                    } else if (destination.hasRemaining()) {
+                        channel.read(destination, null, this);
+                    } else {
+                        filled.complete(null);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exception, Void attachment) {
+                    filled.completeExceptionally(exception);
+                }
+            });
+            return filled;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Connection is being discarded anyway
+            }
+        }
+    }
+}
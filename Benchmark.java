@@ -0,0 +1,1077 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+/**
+* This class implements some micro benchmarks for the hot paths of a node.
+* Each benchmark is selected by its name as the first argument, e.g.
+*
+*       java Benchmark threads [requests] [hops] [hopLatencyMillis]
+*       java Benchmark hash [inputs] [iterations]
+*       java Benchmark alloc [iterations]
+*       java Benchmark lookup [nodes] [lookups] [clients]
+*       java Benchmark batch [nodes] [keys]
+*       java Benchmark cache [nodes] [lookups] [hotKeys]
+*       java Benchmark burst [nodes] [clients] [lookups] [hotKeys]
+*       java Benchmark transfer [keys] [joins]
+*       java Benchmark handoff [keys] [chunkSize]
+*       java Benchmark store [nodes] [keys] [valueSize]
+*       java Benchmark offheap [keys] [valueSize] [updates]
+*       java Benchmark wal [writers] [puts] [valueSize]
+*
+* Benchmarks are plain timing loops with a warm up round, so the numbers
+* are to be compared between the variants of one run rather than between
+* different machines.
+*
+* @author Vijay Kumar
+*/
+
+public class Benchmark {
+
+    // Private constructor to ensure non-instantiability
+    private Benchmark() {}
+
+    /**
+    * Compares serving a storm of lookups on a new platform thread per
+    * request, as the server used to do, with serving them on virtual threads.
+    * Every request blocks for the given number of hops, just like a handler
+    * waiting on a recursive FindPredecessor chain.
+    *
+    * @param requests
+    *        number of concurrent requests
+    * @param hops
+    *        number of blocking remote calls made by every request
+    * @param hopLatency
+    *        time in milliseconds every remote call blocks for
+    */
+    private static void threads(int requests, int hops, long hopLatency) throws InterruptedException {
+        System.out.printf("%-10s%-12s%-14s%-14s\n", "Threads", "Time (ms)", "Requests/s", "Peak threads");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            runThreads("platform", false, requests, hops, hopLatency, warmUp);
+
+            if (!NodeUtility.supportsVirtualThreads()) {
+                if (!warmUp) {
+                    System.out.printf("%-10s%s\n", "virtual", "not available on this JVM");
+                }
+            } else {
+                runThreads("virtual", true, requests, hops, hopLatency, warmUp);
+            }
+        }
+    }
+
+    private static void runThreads(String label, boolean virtual, int requests, int hops,
+                                   long hopLatency, boolean warmUp) throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        CountDownLatch done = new CountDownLatch(requests);
+
+        Runnable request = () -> {
+            try {
+                for (int hop = 0; hop < hops; hop++) {
+                    Thread.sleep(hopLatency);
+                }
+            } catch (InterruptedException exception) {
+                exception.printStackTrace();
+            }
+            done.countDown();
+        };
+
+        threadBean.resetPeakThreadCount();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests; i++) {
+            NodeUtility.newThread(request, "Request-" + i, virtual).start();
+        }
+        done.await();
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        if (!warmUp) {
+            System.out.printf("%-10s%-12d%-14d%-14d\n", label, elapsed,
+                              requests * 1000L / Math.max(elapsed, 1), threadBean.getPeakThreadCount());
+        }
+    }
+
+    /**
+    * Compares hashValue with the earlier implementation, which built a
+    * binary String out of the digest and parsed it back chunk by chunk.
+    * Both are first checked to give the same hash for every input.
+    *
+    * @param inputs
+    *        number of distinct strings hashed
+    * @param iterations
+    *        number of times every string is hashed
+    */
+    private static void hash(int inputs, int iterations) throws Exception {
+        String[] strings = new String[inputs];
+        String[] files = NodeUtility.generateRandomFiles(inputs / 2);
+
+        for (int i = 0; i < inputs; i++) {
+            strings[i] = i < files.length ? files[i] : "localhost/127.0.0.1:" + (8000 + i);
+        }
+
+        if (NodeUtility.NUMBER_OF_AVAILABLE_BITS != 5) {
+            throw new IllegalStateException("Earlier implementation works only with 5 bits, run with chord.bits=5");
+        }
+
+        for (String string : strings) {
+            if (NodeUtility.hashValue(string) != legacyHashValue(string)) {
+                throw new IllegalStateException("Hashes differ for " + string);
+            }
+        }
+        System.out.printf("Hashes identical for %d strings\n\n", inputs);
+        System.out.printf("%-10s%-12s%-16s\n", "Variant", "ns/op", "Bytes/op");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            long sink = 0;
+
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String string : strings) {
+                    sink ^= legacyHashValue(string);
+                }
+            }
+            report("legacy", start, bytes, (long) iterations * inputs, warmUp);
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String string : strings) {
+                    sink ^= NodeUtility.hashValue(string);
+                }
+            }
+            report("current", start, bytes, (long) iterations * inputs, warmUp);
+
+            if (sink == Long.MIN_VALUE) {
+                System.out.println();
+            }
+        }
+    }
+
+    /**
+    * Measures time and allocation of the finger computations made by the 
+    * maintenance loops, i.e, FixFingers, initializeFingerTable and 
+    * updateOthers, along with the port lookups, against the boxed maps 
+    * which used to back getithStep and getPort. 
+    *
+    * @param iterations
+    *        number of times every finger and port is looked up
+    */
+    private static void alloc(int iterations) {
+        int bits = NodeUtility.NUMBER_OF_AVAILABLE_BITS;
+        Map<Integer, Long> steps = new HashMap<>();
+        Map<Integer, Integer> ports = new HashMap<>();
+
+        for (int i = 0; i < bits; i++) {
+            steps.put(i, NodeUtility.getithStep(i));
+        }
+        for (int ID = 0; ID < 32; ID++) {
+            ports.put(ID, NodeUtility.getPort(ID));
+        }
+
+        System.out.printf("%-10s%-12s%-16s\n", "Variant", "ns/op", "Bytes/op");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            long sink = 0;
+
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int n = 0; n < iterations; n++) {
+                long key = n & NodeUtility.KEY_MASK;
+                for (int i = 0; i < bits; i++) {
+                    long fingerStart = (key + steps.get(i)) & NodeUtility.KEY_MASK;
+                    long requiredKey = (key - steps.get(i)) & NodeUtility.KEY_MASK;
+                    sink += fingerStart ^ requiredKey;
+                }
+                sink += ports.get(n & 31);
+            }
+            report("boxed", start, bytes, (long) iterations * (bits + 1), warmUp);
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int n = 0; n < iterations; n++) {
+                long key = n & NodeUtility.KEY_MASK;
+                for (int i = 0; i < bits; i++) {
+                    long fingerStart = NodeUtility.addToKey(key, NodeUtility.getithStep(i));
+                    long requiredKey = NodeUtility.addToKey(key, -NodeUtility.getithStep(i));
+                    sink += fingerStart ^ requiredKey;
+                }
+                sink += NodeUtility.getPort(n & 31);
+            }
+            report("current", start, bytes, (long) iterations * (bits + 1), warmUp);
+
+            if (sink == Long.MIN_VALUE) {
+                System.out.println();
+            }
+        }
+    }
+
+    /**
+    * Compares recursive and iterative lookups over a ring of nodes running
+    * in this JVM.  Every client looks up random keys starting from random
+    * nodes, and the successor found is checked against the ring.  Last row
+    * makes the lookups of all the clients through lookupAsync, fired at
+    * once from a single thread.Ports
+    * whose key is taken by an earlier node are skipped, so a wider ID space,
+    * e.g. chord.bits=32, allows a larger ring.
+    *
+    * @param nodes
+    *        number of nodes in the ring
+    * @param lookups
+    *        number of lookups made by every client in every mode
+    * @param clients
+    *        number of clients looking up concurrently
+    */
+    private static void lookup(int nodes, int lookups, int clients) throws InterruptedException {
+        Node[] ring = startRing(nodes);
+        long[] sortedKeys = sortedKeys(ring);
+
+        System.out.printf("%-11s%-12s%-14s%-14s%-14s%-8s\n", "Mode", "Time (ms)", "Lookups/s",
+                          "Mean (us)", "p99 (us)", "Wrong");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            runLookups(LookupMode.RECURSIVE, ring, sortedKeys, lookups, clients, warmUp);
+            runLookups(LookupMode.ITERATIVE, ring, sortedKeys, lookups, clients, warmUp);
+            runAsyncLookups(ring, sortedKeys, lookups * clients, warmUp);
+        }
+    }
+
+    private static void runLookups(LookupMode mode, Node[] ring, long[] sortedKeys, int lookups,
+                                   int clients, boolean warmUp) throws InterruptedException {
+        long[] latencies = new long[lookups * clients];
+        AtomicInteger wrong = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(clients);
+
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+
+            new Thread(() -> {
+                Random random = new Random(client);
+
+                for (int i = 0; i < lookups; i++) {
+                    long id = random.nextLong() & NodeUtility.KEY_MASK;
+                    Node origin = ring[random.nextInt(ring.length)];
+
+                    long begin = System.nanoTime();
+                    Peer successor = origin.getSuccessor(id, mode);
+                    latencies[client * lookups + i] = System.nanoTime() - begin;
+
+                    if (successor.key != successorOf(sortedKeys, id)) {
+                        wrong.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }, "Client-" + c).start();
+        }
+        done.await();
+
+        reportLookups(mode.name().toLowerCase(), start, latencies, wrong.get(), warmUp);
+    }
+
+    private static void runAsyncLookups(Node[] ring, long[] sortedKeys, int lookups,
+                                        boolean warmUp) throws InterruptedException {
+        long[] latencies = new long[lookups];
+        AtomicInteger wrong = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(lookups);
+        Random random = new Random(0);
+        Semaphore inFlight = new Semaphore(256);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            int lookup = i;
+            inFlight.acquire();
+            long id = random.nextLong() & NodeUtility.KEY_MASK;
+            Node origin = ring[random.nextInt(ring.length)];
+
+            long begin = System.nanoTime();
+            origin.lookupAsync(id).whenComplete((successor, exception) -> {
+                latencies[lookup] = System.nanoTime() - begin;
+
+                if (exception != null || successor.key != successorOf(sortedKeys, id)) {
+                    wrong.incrementAndGet();
+                }
+                inFlight.release();
+                done.countDown();
+            });
+        }
+        done.await();
+
+        reportLookups("async", start, latencies, wrong.get(), warmUp);
+    }
+
+    private static void reportLookups(String label, long start, long[] latencies, int wrong, boolean warmUp) {
+        long elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+        if (!warmUp) {
+            Arrays.sort(latencies);
+            long total = 0;
+            for (long latency : latencies) {
+                total += latency;
+            }
+            System.out.printf("%-11s%-12d%-14d%-14.1f%-14.1f%-8d\n", label, elapsed,
+                              latencies.length * 1000L / elapsed, total / 1000.0 / latencies.length,
+                              latencies[(int) (latencies.length * 0.99)] / 1000.0, wrong);
+        }
+    }
+
+    /**
+    * Compares resolving many keys one lookup at a time with resolving them
+    * through a single FindSuccessors batch, over a ring of nodes running in
+    * this JVM.
+    *
+    * @param nodes
+    *        number of nodes in the ring
+    * @param keys
+    *        number of keys resolved
+    */
+    private static void batch(int nodes, int keys) throws InterruptedException {
+        Node[] ring = startRing(nodes);
+        long[] sortedKeys = sortedKeys(ring);
+        long[] ids = new long[keys];
+        Random random = new Random(0);
+
+        for (int i = 0; i < keys; i++) {
+            ids[i] = random.nextLong() & NodeUtility.KEY_MASK;
+        }
+
+        System.out.printf("%-11s%-12s%-14s%-8s\n", "Variant", "Time (ms)", "Keys/s", "Wrong");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+
+            long start = System.nanoTime();
+            Peer[] successors = new Peer[keys];
+            for (int i = 0; i < keys; i++) {
+                successors[i] = ring[0].getSuccessor(ids[i]);
+            }
+            reportBatch("single", start, sortedKeys, ids, successors, warmUp);
+
+            start = System.nanoTime();
+            successors = ring[0].getSuccessors(ids);
+            reportBatch("batch", start, sortedKeys, ids, successors, warmUp);
+        }
+    }
+
+    /**
+    * Compares looking up keys through the location cache with looking them
+    * up afresh every time, over a ring of nodes running in this JVM.  Nine
+    * lookups out of ten are for a small set of hot keys, the rest for random
+    * keys, all starting from the same node.
+    *
+    * @param nodes
+    *        number of nodes in the ring
+    * @param lookups
+    *        number of lookups in every variant
+    * @param hotKeys
+    *        number of keys most of the lookups are for
+    */
+    private static void cache(int nodes, int lookups, int hotKeys) throws InterruptedException {
+        Node[] ring = startRing(nodes);
+        long[] sortedKeys = sortedKeys(ring);
+        long[] hot = new long[hotKeys];
+        Random random = new Random(0);
+
+        for (int i = 0; i < hotKeys; i++) {
+            hot[i] = random.nextLong() & NodeUtility.KEY_MASK;
+        }
+
+        long[] ids = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            ids[i] = random.nextInt(10) == 0 ? random.nextLong() & NodeUtility.KEY_MASK : hot[random.nextInt(hotKeys)];
+        }
+
+        System.out.printf("%-11s%-12s%-14s%-8s\n", "Variant", "Time (ms)", "Lookups/s", "Wrong");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+
+            long start = System.nanoTime();
+            Peer[] owners = new Peer[lookups];
+            for (int i = 0; i < lookups; i++) {
+                owners[i] = ring[0].getSuccessor(ids[i]);
+            }
+            reportBatch("uncached", start, sortedKeys, ids, owners, warmUp);
+
+            ring[0].locationCache.clear();
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                owners[i] = ring[0].lookup(ids[i]);
+            }
+            reportBatch("cached", start, sortedKeys, ids, owners, warmUp);
+        }
+
+        System.out.println();
+        ring[0].locationCache.printStatistics();
+    }
+
+    /**
+    * Compares keeping the keys and values of a node in a map on the heap, as
+    * the node used to do, with the KeyStore keeping them outside the heap.
+    * Reported are the heap in use once the keys are loaded, the collections
+    * and their time while the values are overwritten at random, and the
+    * longest stall seen by a thread ticking every millisecond, much like the
+    * beats of Stabilize.  Run it with a large enough heap and direct memory,
+    * e.g, -Xmx2g -XX:MaxDirectMemorySize=2g -Dchord.storeCapacity=2000000000.
+    *
+    * @param keys
+    *        number of keys stored
+    * @param valueSize
+    *        size in bytes of every value
+    * @param updates
+    *        number of values overwritten
+    */
+    private static void offheap(int keys, int valueSize, int updates) throws InterruptedException {
+        System.out.printf("%-10s%-12s%-14s%-12s%-16s%-14s\n", "Variant", "Load (ms)", "Heap (MB)",
+                          "GC count", "GC time (ms)", "Max stall (ms)");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            int size = warmUp ? keys / 10 : keys;
+
+            Map<String, byte[]> map = new HashMap<>();
+            runOffheap("heapMap", size, valueSize, updates, warmUp,
+                       (name, value) -> {
+                           map.put(name, value);
+                           return true;
+                       });
+            map.clear();
+
+            KeyStore store = new KeyStore();
+            runOffheap("keyStore", size, valueSize, updates, warmUp, store::put);
+            if (!warmUp) {
+                System.out.printf("\nKeyStore: %d MB outside the heap, %d MB of garbage, %d compactions\n",
+                                  store.allocatedBytes() >> 20, store.garbageBytes() >> 20, store.getCompactions());
+            }
+        }
+    }
+
+    private static void runOffheap(String label, int keys, int valueSize, int updates, boolean warmUp,
+                                   BiPredicate<String, byte[]> put) throws InterruptedException {
+        Random random = new Random(0);
+        byte[] value = new byte[valueSize];
+        System.gc();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            random.nextBytes(value);
+            put.test("file-" + i, value.clone());
+        }
+        long load = (System.nanoTime() - start) / 1000000;
+
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        long[] maxStall = new long[1];
+        Thread ticker = new Thread(() -> {
+            long last = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                maxStall[0] = Math.max(maxStall[0], now - last);
+                last = now;
+            }
+        });
+
+        long collections = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections -= collector.getCollectionCount();
+            collectionTime -= collector.getCollectionTime();
+        }
+        ticker.start();
+
+        for (int i = 0; i < updates; i++) {
+            random.nextBytes(value);
+            put.test("file-" + random.nextInt(keys), value.clone());
+        }
+
+        ticker.interrupt();
+        ticker.join();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += collector.getCollectionCount();
+            collectionTime += collector.getCollectionTime();
+        }
+
+        if (!warmUp) {
+            System.out.printf("%-10s%-12d%-14d%-12d%-16d%-14.1f\n", label, load, heap >> 20, collections,
+                              collectionTime, maxStall[0] / 1e6);
+        }
+    }
+
+    /**
+    * Compares making every put durable with an fsync of its own, with the
+    * group commit of WriteAheadLog, where concurrent writers share fsyncs.
+    * The log is written to a fresh directory under chord.dataDir, or the
+    * temporary directory if it is not set.  Every writer puts its share of
+    * the values and waits for each to be durable before the next.
+    *
+    * @param writers
+    *        number of concurrent writers
+    * @param puts
+    *        number of values put by all the writers together
+    * @param valueSize
+    *        size in bytes of every value
+    */
+    private static void wal(int writers, int puts, int valueSize) throws Exception {
+        String parent = NodeUtility.DATA_DIRECTORY != null ? NodeUtility.DATA_DIRECTORY
+                                                           : System.getProperty("java.io.tmpdir");
+        Files.createDirectories(Paths.get(parent));
+
+        System.out.printf("%-13s%-12s%-12s%-10s%-14s\n", "Variant", "Time (ms)", "Puts/s", "Fsyncs",
+                          "Puts/fsync");
+
+        for (boolean grouped : new boolean[] { false, true }) {
+            Path directory = Files.createTempDirectory(Paths.get(parent), "wal");
+            KeyStore store = new KeyStore();
+            WriteAheadLog log = new WriteAheadLog(directory, 1);
+            store.setLog(log);
+            Object serial = new Object();
+            byte[] value = new byte[valueSize];
+            CountDownLatch done = new CountDownLatch(writers);
+
+            long start = System.nanoTime();
+            for (int writer = 0; writer < writers; writer++) {
+                int first = writer;
+                new Thread(() -> {
+                    for (int i = first; i < puts; i += writers) {
+                        if (grouped) {
+                            store.put("file-" + i, value);
+                            store.commit();
+                        } else {
+                            synchronized(serial) {
+                                store.put("file-" + i, value);
+                                store.commit();
+                            }
+                        }
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            long elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+
+            long syncs = Math.max(log.getSyncs(), 1);
+            System.out.printf("%-13s%-12d%-12d%-10d%-14.1f\n", grouped ? "groupCommit" : "fsyncEach", elapsed,
+                              puts * 1000L / elapsed, syncs, (double) puts / syncs);
+
+            log.close();
+            KeyStore recovered = new KeyStore();
+            WriteAheadLog.replay(WriteAheadLog.fileOf(directory, 1), recovered);
+            if (recovered.size() != store.size()) {
+                System.out.printf("Replay recovered %d of %d keys\n", recovered.size(), store.size());
+            }
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+    * Puts values for the given number of keys through random nodes of a ring
+    * running in this JVM, then gets them back through other random nodes,
+    * and reports the throughput of both along with the values which did not
+    * come back as they were put.
+    *
+    * @param nodes
+    *        number of nodes in the ring
+    * @param keys
+    *        number of keys stored
+    * @param valueSize
+    *        size in bytes of every value
+    */
+    private static void store(int nodes, int keys, int valueSize) throws InterruptedException {
+        Node[] ring = startRing(nodes);
+        Random random = new Random(0);
+        byte[][] values = new byte[keys][];
+        for (int i = 0; i < keys; i++) {
+            values[i] = new byte[valueSize];
+            random.nextBytes(values[i]);
+        }
+
+        System.out.printf("%-10s%-12s%-14s%-8s\n", "Operation", "Time (ms)", "Operations/s", "Wrong");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            String prefix = "round-" + round + "-key-";
+
+            int wrong = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < keys; i++) {
+                if (!ring[random.nextInt(nodes)].put(prefix + i, values[i])) {
+                    wrong++;
+                }
+            }
+            long elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+            if (!warmUp) {
+                System.out.printf("%-10s%-12d%-14d%-8d\n", "put", elapsed, keys * 1000L / elapsed, wrong);
+            }
+
+            wrong = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < keys; i++) {
+                if (!Arrays.equals(ring[random.nextInt(nodes)].get(prefix + i), values[i])) {
+                    wrong++;
+                }
+            }
+            elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+            if (!warmUp) {
+                System.out.printf("%-10s%-12d%-14d%-8d\n", "get", elapsed, keys * 1000L / elapsed, wrong);
+            }
+        }
+    }
+
+    /**
+    * Fires a burst of concurrent recursive lookupsfor a few hot keys over a
+    * ring of nodes running in this JVM, and reports how many of them were
+    * answered by a resolution of the same key already in flight.  Running it
+    * once more with chord.singleFlight=false gives the numbers without.
+    *
+    * @param nodes
+    *        number of nodes in the ring
+    * @param clients
+    *        number of concurrent clients, spread over the nodes
+    * @param lookups
+    *        number of lookups made by every client
+    * @param hotKeys
+    *        number of keys all the lookups are for
+    */
+    private static void burst(int nodes, int clients, int lookups, int hotKeys) throws InterruptedException {
+        Node[] ring = startRing(nodes);
+        long[] sortedKeys = sortedKeys(ring);
+        long[] hot = new long[hotKeys];
+        Random random = new Random(0);
+
+        for (int i = 0; i < hotKeys; i++) {
+            hot[i] = random.nextLong() & NodeUtility.KEY_MASK;
+        }
+
+        System.out.printf("%-11s%-12s%-14s%-14s%-8s\n", "Flight", "Time (ms)", "Lookups/s", "Coalesced", "Wrong");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            long coalesced = 0;
+            for (Node node : ring) {
+                coalesced -= node.getCoalescedLookups();
+            }
+
+            long[] ids = new long[clients * lookups];
+            Peer[] owners = new Peer[clients * lookups];
+            CountDownLatch done = new CountDownLatch(clients);
+
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+
+                new Thread(() -> {
+                    Node origin = ring[client % ring.length];
+
+                    for (int i = 0; i < lookups; i++) {
+                        int lookup = client * lookups + i;
+                        ids[lookup] = hot[(client + i) % hotKeys];
+                        owners[lookup] = origin.getSuccessor(ids[lookup], LookupMode.RECURSIVE);
+                    }
+                    done.countDown();
+                }, "Client-" + c).start();
+            }
+            done.await();
+
+            long elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+            int wrong = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (owners[i].key != successorOf(sortedKeys, ids[i])) {
+                    wrong++;
+                }
+            }
+            for (Node node : ring) {
+                coalesced += node.getCoalescedLookups();
+            }
+
+            if (!warmUp) {
+                System.out.printf("%-11s%-12d%-14d%-14d%-8d\n", NodeUtility.SINGLE_FLIGHT ? "single" : "separate",
+                                  elapsed, ids.length * 1000L / elapsed, coalesced, wrong);
+            }
+        }
+    }
+
+    /**
+    * Compares handing over the keys of a joining node out of a KeyStore with
+    * the earlier pass over a map of all the keys.  Every join takes over a
+    * random range of a 1/64 of the ring, from a store of the given size.
+    *
+    * @param keys
+    *        number of keys stored by the node
+    * @param joins
+    *        number of ranges handed over
+    */
+    private static void transfer(int keys, int joins) {
+        String[] names = new String[keys];
+        long[] ids = new long[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "file-" + i;
+            ids[i] = NodeUtility.hashValue(names[i]);
+        }
+
+        long width = Math.max(NodeUtility.KEY_MASK / 64, 1);
+        Random random = new Random(0);
+        long[] lefts = new long[joins];
+        for (int i = 0; i < joins; i++) {
+            lefts[i] = random.nextLong() & NodeUtility.KEY_MASK;
+        }
+
+        System.out.printf("%-10s%-16s%-14s\n", "Variant", "ms per join", "Keys moved");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            long moved = 0;
+            long elapsed = 0;
+
+            for (int join = 0; join < joins; join++) {
+                Map<String, Long> data = new HashMap<>();
+                for (int i = 0; i < keys; i++) {
+                    data.put(names[i], ids[i]);
+                }
+
+                long left = lefts[join];
+                long right = NodeUtility.addToKey(left, width);
+                long start = System.nanoTime();
+
+                List<String> result = new ArrayList<>();
+                Iterator<Map.Entry<String, Long>> iterator = data.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<String, Long> entry = iterator.next();
+                    if (NodeUtility.belongs(left, false, right, true, entry.getValue())) {
+                        result.add(entry.getKey());
+                        iterator.remove();
+                    }
+                }
+                moved += result.size();
+                elapsed += System.nanoTime() - start;
+            }
+            if (!warmUp) {
+                System.out.printf("%-10s%-16.3f%-14d\n", "scan", elapsed / 1e6 / joins, moved / joins);
+            }
+
+            moved = 0;
+            elapsed = 0;
+            for (int join = 0; join < joins; join++) {
+                KeyStore store = new KeyStore();
+                for (int i = 0; i < keys; i++) {
+                    store.add(names[i]);
+                }
+
+                long left = lefts[join];
+                long right = NodeUtility.addToKey(left, width);
+                long start = System.nanoTime();
+
+                moved += store.removeRange(left, right).length;
+                elapsed += System.nanoTime() - start;
+            }
+            if (!warmUp) {
+                System.out.printf("%-10s%-16.3f%-14d\n", "keyStore", elapsed / 1e6 / joins, moved / joins);
+            }
+        }
+    }
+
+    /**
+    * Compares handing over the keys of a joining node in a single KEYS
+    * response with pulling them in chunks, through the binary encoding of
+    * the responses.  Reported are the total time, the time until the first
+    * key is stored by the new node, and the largest frame built.
+    *
+    * @param keys
+    *        number of keys handed over
+    * @param chunkSize
+    *        maximum number of keys in a chunk
+    */
+    private static void handoff(int keys, int chunkSize) {
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "file-" + i;
+        }
+        // New node takes over almost the whole range of its successor, i.e, (second, first]
+        long second = 0;
+        long first = NodeUtility.KEY_MASK;
+
+        System.out.printf("%-10s%-12s%-18s%-16s%-12s\n", "Variant", "Time (ms)", "First key (ms)", "Peak frame (KB)", "Keys");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+
+            KeyStore successor = new KeyStore();
+            KeyStore joining = new KeyStore();
+            for (String name : names) {
+                successor.add(name);
+            }
+
+            long start = System.nanoTime();
+            ByteBuffer frame = Protocol.encode(new Message(Message.KEYS, successor.removeRange(second, first)), null);
+            int peak = frame.limit();
+            frame.position(4);
+            for (String name : Protocol.decode(frame).keys) {
+                joining.add(name);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (!warmUp) {
+                System.out.printf("%-10s%-12.1f%-18.1f%-16d%-12d\n", "oneShot", elapsed / 1e6, elapsed / 1e6,
+                                  peak / 1024, joining.size());
+            }
+
+            successor = new KeyStore();
+            joining = new KeyStore();
+            for (String name : names) {
+                successor.add(name);
+            }
+
+            start = System.nanoTime();
+            long firstKey = 0;
+            long cursor = second;
+            peak = 0;
+            frame = null;
+            while (true) {
+                // Successor side, as in Node.transferChunk
+                if (cursor != second) {
+                    successor.removeRange(second, cursor);
+                }
+                List<String> chunk = new ArrayList<>();
+                List<byte[]> values = new ArrayList<>();
+                if (cursor != first) {
+                    cursor = successor.collectRange(cursor, first, chunkSize, chunk, values);
+                }
+                frame = Protocol.encode(new Message(Message.KEYS_CHUNK, chunk.toArray(new String[0]),
+                                                    values.toArray(new byte[0][]), cursor, chunk.isEmpty()), frame);
+                peak = Math.max(peak, frame.limit());
+
+                // Joining side, as in Node.moveKeys
+                frame.position(4);
+                Message response = Protocol.decode(frame);
+                for (String name : response.keys) {
+                    joining.add(name);
+                }
+                if (firstKey == 0) {
+                    firstKey = System.nanoTime() - start;
+                }
+                if (response.done) {
+                    break;
+                }
+                cursor = response.cursor;
+            }
+            elapsed = System.nanoTime() - start;
+            if (!warmUp) {
+                System.out.printf("%-10s%-12.1f%-18.1f%-16d%-12d\n", "chunked", elapsed / 1e6, firstKey / 1e6,
+                                  peak / 1024, joining.size());
+            }
+        }
+    }
+
+    private static void reportBatch(String label, long start, long[] sortedKeys, long[] ids,
+                                    Peer[] successors, boolean warmUp) {
+        long elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+        int wrong = 0;
+
+        for (int i = 0; i < ids.length; i++) {
+            if (successors[i].key != successorOf(sortedKeys, ids[i])) {
+                wrong++;
+            }
+        }
+        if (!warmUp) {
+            System.out.printf("%-11s%-12d%-14d%-8d\n", label, elapsed, ids.length * 1000L / elapsed, wrong);
+        }
+    }
+
+    /**
+    * Starts a ring of nodes in this JVM on the ports from 9000 onwards, and
+    * waits for the ring to settle.  Ports whose key is taken by an earlier
+    * node are skipped.
+    */
+    private static Node[] startRing(int nodes) throws InterruptedException {
+        Node[] ring = new Node[nodes];
+        Set<Long> keys = new HashSet<>();
+        int port = 9000;
+
+        for (int i = 0; i < nodes; port++) {
+            if (keys.add(NodeUtility.hashValue(new InetSocketAddress("localhost", port)))) {
+                ring[i] = i == 0 ? new Node("localhost", port) : new Node("localhost", port, ring[0].address);
+                i++;
+            }
+        }
+
+        // Lets stabilization and fixing of fingers settle the ring
+        Thread.sleep(5000);
+        return ring;
+    }
+
+    private static long[] sortedKeys(Node[] ring) {
+        long[] sortedKeys = new long[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            sortedKeys[i] = ring[i].key;
+        }
+        Arrays.sort(sortedKeys);
+        return sortedKeys;
+    }
+
+    /**
+    * Finds the first key of the ring greater than or equal to id.
+    */
+    private static long successorOf(long[] sortedKeys, long id) {
+        for (long key : sortedKeys) {
+            if (key >= id) {
+                return key;
+            }
+        }
+        return sortedKeys[0];
+    }
+
+    /**
+    * Earlier implementation of hashValue, kept only for comparison.
+    */
+    private static int legacyHashValue(String string) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA1");
+        messageDigest.update(string.getBytes());
+        byte[] bytes = messageDigest.digest();
+
+        StringBuilder binary = new StringBuilder();
+        for (byte b : bytes) {
+            String s = Integer.toBinaryString(0x100 | b);
+            binary.append(s.substring(s.length() - 8, s.length()));
+        }
+        String s = binary.toString();
+
+        int hash = 0;
+        for (int i = 0; i < 32; i++) {
+            int beginIndex = i * 5;
+            hash ^= Integer.parseInt(s.substring(beginIndex, beginIndex + 5), 2);
+        }
+        return hash;
+    }
+
+    private static void report(String label, long start, long bytes, long operations, boolean warmUp) {
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytes;
+
+        if (!warmUp) {
+            System.out.printf("%-10s%-12.1f%-16.1f\n", label, (double) elapsed / operations,
+                              (double) allocated / operations);
+        }
+    }
+
+    /**
+    * Bytes allocated so far by the current thread, as reported by the JVM.
+    */
+    private static long allocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static int argument(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String benchmark = args.length > 0 ? args[0] : "";
+
+        switch (benchmark) {
+            case "threads":
+                threads(argument(args, 1, 5000), argument(args, 2, 5), argument(args, 3, 10));
+                break;
+
+            case "hash":
+                hash(argument(args, 1, 1000), argument(args, 2, 1000));
+                break;
+
+            case "alloc":
+                alloc(argument(args, 1, 10000000));
+                break;
+
+            case "lookup":
+                lookup(argument(args, 1, 16), argument(args, 2, 2000), argument(args, 3, 8));
+                System.exit(0);
+                break;
+
+            case "batch":
+                batch(argument(args, 1, 16), argument(args, 2, 20000));
+                System.exit(0);
+                break;
+
+            case "cache":
+                cache(argument(args, 1, 16), argument(args, 2, 5000), argument(args, 3, 100));
+                System.exit(0);
+                break;
+
+            case "transfer":
+                transfer(argument(args, 1, 1000000), argument(args, 2, 5));
+                break;
+
+            case "handoff":
+                handoff(argument(args, 1, 1000000), argument(args, 2, NodeUtility.TRANSFER_CHUNK_SIZE));
+                break;
+
+            case "store":
+                store(argument(args, 1, 16), argument(args, 2, 20000), argument(args, 3, 100));
+                System.exit(0);
+                break;
+
+            case "offheap":
+                offheap(argument(args, 1, 2000000), argument(args, 2, 100), argument(args, 3, 2000000));
+                break;
+
+            case "wal":
+                wal(argument(args, 1, 32), argument(args, 2, 5000), argument(args, 3, 100));
+                break;
+
+            case "burst":
+                burst(argument(args, 1, 16), argument(args, 2, 64), argument(args, 3, 200), argument(args, 4, 4));
+                System.exit(0);
+                break;
+
+            default:
+                System.out.printf("Usage: java Benchmark threads [requests] [hops] [hopLatencyMillis]\n"
+                                  + "       java Benchmark hash [inputs] [iterations]\n"
+                                  + "       java Benchmark alloc [iterations]\n"
+                                  + "       java Benchmark lookup [nodes] [lookups] [clients]\n"
+                                  + "       java Benchmark batch [nodes] [keys]\n"
+                                  + "       java Benchmark cache [nodes] [lookups] [hotKeys]\n"
+                                  + "       java Benchmark burst [nodes] [clients] [lookups] [hotKeys]\n"
+                                  + "       java Benchmark transfer [keys] [joins]\n"
+                                  + "       java Benchmark handoff [keys] [chunkSize]\n"
+                                  + "       java Benchmark store [nodes] [keys] [valueSize]\n"
+                                  + "       java Benchmark offheap [keys] [valueSize] [updates]\n"
+                                  + "       java Benchmark wal [writers] [puts] [valueSize]\n");
+        }
+    }
+}
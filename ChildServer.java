@@ -1,123 +1,158 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
 
 /**
-* This class implements a childserver which actually serves the request that was 
-* directed towards this server from the main server responsible for a particular 
-* node.  One childserver serves to only one request. 
+* This class implements a childserver which actually serves the requests that were 
+* directed towards the server responsible for a particular node.  Event loops of 
+* the server hand the requests over to the childserver, either directly or through 
+* a worker when the request would block on a remote call. 
 * 
 * @author Vijay Kumar
 */
 
-public class ChildServer implements Runnable {
+public class ChildServer {
     // Node on behalf of which server will serve the request
     private Node node; 
     
-    // Socket through which server will communicate 
-    private Socket socket; 
-    
     /**
     * Initializes the necessary fields 
     * 
     * @param node  
     *        Node on the behalf of which server will serve the request
-    * @param socket
-    *        Socket through which server will communicate 
     */
-    public ChildServer(Node node, Socket socket) {
+    public ChildServer(Node node) {
         this.node = node; 
-        this.socket = socket; 
+    }
+    
+    /**
+    * Checks whether serving the request requires communicating with 
+    * some other node, in which case it should not be served by an 
+    * event loop of the server. 
+    * 
+    * @param  request
+    *         Request to be served
+    * @return true, if the request may block on a remote call 
+    *         false, otherwise
+    */
+    public boolean isBlocking(Message request) {
+        switch (request.opcode) {
+            case Message.FIND_SUCCESSOR: 
+            case Message.FIND_PREDECESSOR: 
+            case Message.FIND_SUCCESSORS:
+            case Message.PUT:
+            case Message.GET:
+            case Message.DELETE:
+            case Message.UPDATE_ITH_FINGER:
+            case Message.NOTIFY: 
+            case Message.STABILIZE_EXCHANGE:
+            case Message.TRANSFER_KEYS:
+            case Message.TRANSFER_CHUNK:
+                return true; 
+            
+            default:
+                return false; 
+        }
+    }
+    
+    /**
+    * Finds whether the same lookup as the request is already being resolved 
+    * by the node, in which case the request can wait on it without a worker. 
+    * 
+    * @param  request
+    *         Request to be served
+    * @return future completed with the response to the request, 
+    *         null, if the request is to be processed 
+    */
+    public CompletableFuture<Message> getResponseInFlight(Message request) {
+        CompletableFuture<Peer> lookup = node.getLookupInFlight(request); 
+        
+        if (lookup == null) {
+            return null; 
+        }
+        return lookup.thenApply(peer -> new Message(Message.ADDRESS, peer)); 
     }
     
     /**
     * Processes the request with the help of node and utility methods. 
-    * Format of the request string is 
-    * Command : Variables 
-    * Command decides the action that needs to be taken. 
-    * Parameters contain some data on which the action is to be taken as 
-    * as per the command.  Parameters may remain empty, wherever required.
+    * Opcode of the request decides the action that needs to be taken. 
+    * Fields of the request contain some data on which the action is to 
+    * be taken as per the opcode.  Fields may remain empty, wherever required.
     *
     * @param  request
     *         Request to be served
     * @return Appropriate response 
     */
-    private String process(String request) {
+    public Message process(Message request) {
         
-        String[] commands = request.split(":"); 
-        String command = commands[0]; 
-        
-        switch (command) {
-            case "YourSuccessor": 
-                return node.getSuccessor().toString(); 
-            
-            case "YourPredecessor": 
-                return node.getPredecessor().toString(); 
-            
-            case "FindSuccessor": 
-                int id = Integer.parseInt(commands[1]); 
-                return node.getSuccessor(id).toString(); 
+        switch (request.opcode) {
+            case Message.YOUR_SUCCESSOR: 
+                return new Message(Message.ADDRESS, node.getSuccessor()); 
             
-            case "FindPredecessor":
-                id = Integer.parseInt(commands[1]); 
-                return node.getPredecessor(id).toString(); 
+            case Message.YOUR_PREDECESSOR: 
+                return new Message(Message.ADDRESS, node.getPredecessor()); 
             
-            case "ChangePredecessor": 
-                InetSocketAddress potentialPredecessor = NodeUtility.parseInetSocketAddress
-                                                         (commands[1] + ":" + commands[2]); 
-                return node.changePredecessor(potentialPredecessor); 
+            case Message.FIND_SUCCESSOR: 
+                return new Message(Message.ADDRESS, node.getSuccessor(request.id, LookupMode.RECURSIVE)); 
             
-            case "ChangeSuccessor":
-                InetSocketAddress potentialSuccessor = NodeUtility.parseInetSocketAddress
-                                                       (commands[1] + ":" + commands[2]); 
-                return node.changeSuccessor(potentialSuccessor);
+            case Message.FIND_PREDECESSOR:
+                return new Message(Message.ADDRESS, node.getPredecessor(request.id)); 
             
-            case "UpdateithFinger":
-                int i = Integer.parseInt(commands[1]);
-                InetSocketAddress potentialFinger = NodeUtility.parseInetSocketAddress
-                                                    (commands[2] + ":" + commands[3]); 
-                return node.updateithFinger(i, potentialFinger);
+            case Message.CHANGE_PREDECESSOR: 
+                node.changePredecessor(request.peer); 
+                return new Message(Message.DONE); 
             
-            case "TransferKeys":
-                int firstPredecessorKey = Integer.parseInt(commands[1]); 
-                int secondPredecessorKey = Integer.parseInt(commands[2]); 
-                return node.transferKeys(firstPredecessorKey, secondPredecessorKey);
+            case Message.CHANGE_SUCCESSOR:
+                node.changeSuccessor(request.peer);
+                return new Message(Message.DONE); 
             
-            case "Notify": 
-                potentialPredecessor = NodeUtility.parseInetSocketAddress
-                                       (commands[1] + ":" + commands[2]); 
-                return node.notify(potentialPredecessor);
+            case Message.UPDATE_ITH_FINGER:
+                node.updateithFinger(request.index, request.peer);
+                return new Message(Message.DONE); 
             
-            case "Alive":
-                return "Yes Baby"; 
-            
-            default:
-                return "Done"; 
-        }
-    }
-    
-    /**
-    * The run method where the actuall communication takes place. 
-    */
-    @Override
-    public void run() {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())); 
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())); 
+            case Message.TRANSFER_KEYS:
+                return node.transferKeys(request.id, request.secondId);
+
+            case Message.TRANSFER_CHUNK:
+                return node.transferChunk(request.id, request.secondId, request.cursor, request.index);
+
+            case Message.NOTIFY: 
+                node.notify(request.peer);
+                return new Message(Message.DONE); 
             
-            String request = in.readLine(); 
+            case Message.STABILIZE_EXCHANGE:
+                return node.stabilizeExchange(request.peer);
             
-            String response = process(request); 
+            case Message.YOUR_SUCCESSORS:
+                return new Message(Message.PEERS, node.getSuccessorList());
+
+            case Message.ALIVE:
+                return new Message(Message.DONE); 
             
-            out.write(response + "\n");
-            out.flush();
+            case Message.NEXT_HOP: 
+                return node.nextHop(request.id); 
             
-            socket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            case Message.FIND_SUCCESSORS:
+                return new Message(Message.PEERS, node.getSuccessors(request.ids));
+
+            case Message.PUT:
+                boolean stored = node.put(request.name, request.value, request.index);
+                return new Message(stored ? Message.DONE : Message.FAILED);
+
+            case Message.GET:
+                // Node which has run out of forwards without owning the key cannot answer
+                if (request.index <= 0 && !node.owns(NodeUtility.hashValue(request.name))) {
+                    return new Message(Message.FAILED);
+                }
+                return new Message(Message.VALUE, node.get(request.name, request.index));
+
+            case Message.FETCH:
+                return new Message(Message.VALUE, node.fetch(request.name));
+
+            case Message.DELETE:
+                boolean deleted = node.delete(request.name, request.index);
+                return new Message(deleted ? Message.DONE : Message.FAILED);
+
+            default:
+                return new Message(Message.DONE); 
         }
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,502 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+* This class implements a pool of persistent connections towards the other
+* nodes of the chord ring.  Instead of paying a TCP handshake and teardown
+* for every request, a connection is borrowed from the pool, used for one
+* request-response exchange and handed back for reuse.  The pool keeps a
+* bounded number of idle connections per peer and closes the connections
+* which have stayed idle for too long.
+*
+* Connections open towards a peer, idle or in use, are bounded as well.
+* Once the bound is reached, a new connection waits for another one to
+* close, and fails if none does in time, so that a slow peer is not
+* flooded with connections by the threads waiting on it.
+*
+* @author Vijay Kumar
+*/
+
+public class ConnectionPool implements Runnable {
+    // Idle connections for each peer, most recently used first
+    private final Map<InetSocketAddress, Deque<Connection>> idleConnections;
+
+    // Peers which have answered in the text format instead of the version byte, and when
+    private final Map<InetSocketAddress, Long> textOnlyPeers;
+
+    // Maximum number of idle connections retained for a single peer
+    private final int maxIdlePerPeer;
+
+    // Connections which may still be opened towards each peer
+    private final Map<InetSocketAddress, Semaphore> openPermits;
+
+    // Maximum number of connections open towards a single peer
+    private final int maxPerPeer;
+
+    // Time in milliseconds to wait for a connection once the maximum is reached
+    private final long waitTimeout;
+
+    // Time in milliseconds after which an idle connection is closed
+    private final long idleTimeout;
+
+    /**
+    * Boolean value to keep track of when to stop. Kept as volatile
+    * so that the value of active is always checked from the main
+    * memory instead of storing it in a cache.
+    */
+    private volatile boolean active;
+
+    /**
+    * Initializes the pool and starts the thread which evicts idle connections.
+    *
+    * @param maxIdlePerPeer
+    *        Maximum number of idle connections retained for a single peer
+    * @param maxPerPeer
+    *        Maximum number of connections open towards a single peer
+    * @param waitTimeout
+    *        Time in milliseconds to wait for a connection once the maximum is reached
+    * @param idleTimeout
+    *        Time in milliseconds after which an idle connection is closed
+    */
+    ConnectionPool(int maxIdlePerPeer, int maxPerPeer, long waitTimeout, long idleTimeout) {
+        this.idleConnections = new ConcurrentHashMap<>();
+        this.textOnlyPeers = new ConcurrentHashMap<>();
+        this.maxIdlePerPeer = maxIdlePerPeer;
+        this.openPermits = new ConcurrentHashMap<>();
+        this.maxPerPeer = maxPerPeer;
+        this.waitTimeout = waitTimeout;
+        this.idleTimeout = idleTimeout;
+        this.active = true;
+
+        Thread evictor = new Thread(this, "ConnectionPool-Evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+    * Gives a connection towards the given peer.  An idle connection is
+    * reused if one is available, otherwise a new one is opened.
+    *
+    * @param  address
+    *         InetSocketAddress of the peer
+    * @return Connection towards the peer
+    * @throws IOException
+    *         if a new connection could not be opened
+    */
+    public Connection borrow(InetSocketAddress address) throws IOException {
+        Deque<Connection> connections = idleConnections.get(address);
+
+        if (connections != null) {
+            long now = System.currentTimeMillis();
+
+            while (true) {
+                Connection connection;
+                synchronized(connections) {
+                    connection = connections.pollFirst();
+                }
+
+                if (connection == null) {
+                    break;
+                } else if (now - connection.lastUsed < idleTimeout && !connection.socket.isClosed()) {
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return open(address);
+    }
+
+    /**
+    * Opens a fresh connection towards the given peer, bypassing the idle ones.
+    * If the peer already has the maximum number of connections open, waits
+    * for one of them to close.
+    *
+    * @param  address
+    *         InetSocketAddress of the peer
+    * @return Connection towards the peer
+    * @throws IOException
+    *         if the connection could not be opened, or none has closed in time
+    */
+    public Connection open(InetSocketAddress address) throws IOException {
+        if (isTextOnly(address)) {
+            return new Connection(address, false, acquire(address));
+        }
+
+        try {
+            return new Connection(address, true, acquire(address));
+        } catch (ProtocolException e) {
+            // Peer has not answered the version byte in time, it may speak text only
+            Connection connection = new Connection(address, false, acquire(address));
+            connection.probing = true;
+            return connection;
+        }
+    }
+
+    /**
+    * Takes one of the connections which may be opened towards the peer.
+    * It is given back when the connection closes.
+    *
+    * @param  address
+    *         InetSocketAddress of the peer
+    * @return Semaphore of the peer, from which a permit has been taken
+    * @throws IOException
+    *         if no connection has closed in time
+    */
+    private Semaphore acquire(InetSocketAddress address) throws IOException {
+        Semaphore permits = openPermits.computeIfAbsent(address, key -> new Semaphore(maxPerPeer));
+
+        try {
+            if (!permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Too many connections open towards " + address);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection towards " + address);
+        }
+        return permits;
+    }
+
+    /**
+    * Checks whether the given peer is known to speak the text format only,
+    * i.e, it has lately answered in the text format instead of the version
+    * byte, or binary is not spoken here.
+    *
+    * @param  address
+    *         InetSocketAddress of the peer
+    * @return true, if requests of the binary format alone cannot be sent to it
+    *         false, otherwise
+    */
+    public boolean isTextOnly(InetSocketAddress address) {
+        if (!Protocol.BINARY) {
+            return true;
+        }
+
+        Long since = textOnlyPeers.get(address);
+        if (since == null) {
+            return false;
+        } else if (System.currentTimeMillis() - since < Protocol.TEXT_ONLY_TIMEOUT) {
+            return true;
+        }
+
+        // Peer may have been upgraded meanwhile, so it is asked for the binary format once more
+        textOnlyPeers.remove(address, since);
+        return false;
+    }
+
+    /**
+    * Hands a connection back to the pool after a successful exchange.  If
+    * the peer already has enough idle connections, the connection is closed.
+    *
+    * @param connection
+    *        Connection which is no longer in use
+    */
+    public void release(Connection connection) {
+        Deque<Connection> connections = idleConnections.computeIfAbsent(connection.address,
+                                                                         key -> new ArrayDeque<>());
+        connection.lastUsed = System.currentTimeMillis();
+        connection.reused = true;
+
+        if (connection.probing) {
+            // Peer has answered in the text format, it speaks text only
+            textOnlyPeers.put(connection.address, connection.lastUsed);
+            connection.probing = false;
+        }
+
+        synchronized(connections) {
+            if (active && connections.size() < maxIdlePerPeer) {
+                connections.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+    * Stops the eviction thread and closes all the idle connections.
+    */
+    public void stop() {
+        this.active = false;
+        evict(Long.MAX_VALUE);
+    }
+
+    /**
+    * Closes the idle connections which have not been used for the given time.
+    *
+    * @param maxIdleTime
+    *        Time in milliseconds, connections idle for longer are closed
+    */
+    private void evict(long maxIdleTime) {
+        long now = System.currentTimeMillis();
+
+        for (Deque<Connection> connections : idleConnections.values()) {
+            synchronized(connections) {
+                Iterator<Connection> iterator = connections.iterator();
+
+                while (iterator.hasNext()) {
+                    Connection connection = iterator.next();
+
+                    if (maxIdleTime == Long.MAX_VALUE || now - connection.lastUsed >= maxIdleTime) {
+                        connection.close();
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+    * Periodically evicts the connections which have been idle for too long.
+    */
+    @Override
+    public void run() {
+        while (active) {
+            try {
+                Thread.sleep(Math.max(idleTimeout / 2, 1));
+            } catch (InterruptedException exception) {
+                exception.printStackTrace();
+            }
+            evict(idleTimeout);
+        }
+    }
+
+    /**
+    * A single persistent connection towards a peer.  A connection is used
+    * by only one thread at a time, between borrow and release.  It speaks
+    * either the binary or the text format, as agreed upon when opened.
+    */
+    public static class Connection {
+        // InetSocketAddress of the peer on the other end
+        private final InetSocketAddress address;
+
+        // Socket through which the communication takes place
+        private final Socket socket;
+
+        private final DataInputStream in;
+
+        private final DataOutputStream out;
+
+        // Whether the binary format is spoken over this connection
+        private final boolean binary;
+
+        // Buffer reused for the frames sent and received in binary format
+        private ByteBuffer buffer;
+
+        // Time at which the connection was handed back to the pool
+        private long lastUsed;
+
+        // Whether the connection has been used before, i.e, taken from the pool
+        private boolean reused;
+
+        // Whether the connection is in text format as the peer has not answered the version byte
+        private boolean probing;
+
+        // Permits of the peer, one of which is held while the connection is open
+        private final Semaphore permits;
+
+        // Whether the connection has been closed and its permit given back
+        private boolean closed;
+
+        /**
+        * Opens the connection, and if binary format is asked for, sends the
+        * version byte and waits for the peer to answer it.  Permit taken for
+        * the connection is given back if it could not be opened.
+        *
+        * @throws ProtocolException
+        *         if the peer does not answer the version byte in time
+        */
+        private Connection(InetSocketAddress address, boolean binary, Semaphore permits) throws IOException {
+            this.address = address;
+            this.binary = binary;
+            this.permits = permits;
+
+            try {
+                this.socket = new Socket(address.getAddress(), address.getPort());
+                this.socket.setTcpNoDelay(true);
+                this.socket.setKeepAlive(true);
+                this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                if (binary) {
+                    handshake();
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void handshake() throws IOException {
+            try {
+                socket.setSoTimeout(Protocol.HANDSHAKE_TIMEOUT);
+                out.write(Protocol.VERSION);
+                out.flush();
+
+                int version = in.read();
+                if (version < 0) {
+                    throw new EOFException("Connection closed before the version byte");
+                } else if (version < 1 || version > Protocol.VERSION) {
+                    throw new IOException("Unexpected version " + version);
+                }
+                socket.setSoTimeout(0);
+            } catch (SocketTimeoutException e) {
+                throw new ProtocolException("No answer to the version byte");
+            }
+        }
+
+        /**
+        * Sends a request and waits for its response.
+        *
+        * @param  request
+        *         request that needs to be served
+        * @return response from server,
+        *         null, if the peer has closed the connection
+        * @throws IOException
+        *         if there was any error in communication
+        */
+        public Message exchange(Message request) throws IOException {
+            return binary ? exchangeBinary(request) : exchangeText(request);
+        }
+
+        /**
+        * Sends a request and waits for its response, at most for the given
+        * time.  Connection should be closed if the time runs out, as the
+        * response may still arrive later.
+        *
+        * @param  request
+        *         request that needs to be served
+        * @param  timeout
+        *         time in milliseconds to wait for the response, 0 to wait forever
+        * @return response from server,
+        *         null, if the peer has closed the connection
+        * @throws SocketTimeoutException
+        *         if the response has not arrived in time
+        * @throws IOException
+        *         if there was any error in communication
+        */
+        public Message exchange(Message request, int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+            try {
+                return exchange(request);
+            } finally {
+                if (timeout != 0 && !socket.isClosed()) {
+                    socket.setSoTimeout(0);
+                }
+            }
+        }
+
+        private Message exchangeBinary(Message request) throws IOException {
+            buffer = Protocol.encode(request, buffer);
+            out.write(buffer.array(), 0, buffer.limit());
+            out.flush();
+
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Invalid frame length " + length);
+            } else if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+
+            buffer.clear();
+            in.readFully(buffer.array(), 0, length);
+            buffer.limit(length);
+
+            try {
+                return Protocol.decode(buffer);
+            } catch (IllegalArgumentException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+        }
+
+        private Message exchangeText(Message request) throws IOException {
+            out.write((Protocol.toText(request) + "\n").getBytes());
+            out.flush();
+
+            String response = readLine();
+            if (response == null) {
+                return null;
+            }
+
+            try {
+                return Protocol.parseResponse(request, response);
+            } catch (RuntimeException e) {
+                throw new ProtocolException("Unexpected response " + response);
+            }
+        }
+
+        /**
+        * Reads a line of the text format.
+        *
+        * @return line without the line separator,
+        *         null, if the peer has closed the connection
+        */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                } else if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString();
+        }
+
+        /**
+        * Whether this connection had already served a request before.
+        * A failure on such a connection may only mean that the peer has
+        * closed it in the meantime.
+        */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+        * Closes the connection, ignoring any error, and gives back its permit.
+        */
+        public void close() {
+            synchronized(this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            permits.release();
+
+            if (socket == null) {
+                return;
+            }
+
+            try {
+                socket.close();
+            } catch (IOException exception) {
+                // Connection is being discarded anyway
+            }
+        }
+    }
+}
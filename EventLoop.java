@@ -0,0 +1,494 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+* This class implements an event loop of the server.  A single thread waits
+* on a selector for all the connections registered with this loop, reads
+* the requests as they arrive and writes back the responses.  A request
+* which would block on a remote call is handed to the workers and its
+* response is written by the loop once the worker has finished.
+*
+* Requests over a connection are served one after the other, so responses
+* are always written in the order in which the requests were received.  Both
+* the binary and the text format of Protocol are served.
+*
+* @author Vijay Kumar
+*/
+
+public class EventLoop implements Runnable {
+    // Charset in which the requests and responses are encoded
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    // Size of the buffer used to read from a connection
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    // Formats of a connection
+    private static final byte UNDECIDED = 0;
+    private static final byte TEXT = 1;
+    private static final byte BINARY = 2;
+
+    // Serves the requests on behalf of the node
+    private ChildServer childServer;
+
+    // Workers for the requests which block on a remote call
+    private ExecutorService workers;
+
+    // Selector on which all connections of this loop are registered
+    private Selector selector;
+
+    // Tasks submitted from other threads, to be run by this loop
+    private Queue<Runnable> tasks;
+
+    // Buffer shared by all connections of this loop for reading
+    private ByteBuffer readBuffer;
+
+    /**
+    * Boolean value to keep track of when to stop. Kept as volatile
+    * so that the value of active is always checked from the main
+    * memory instead of storing it in a cache.
+    */
+    private volatile boolean active;
+
+    /**
+    * Initializes the event loop.
+    *
+    * @param  childServer
+    *         Serves the requests on behalf of the node
+    * @param  workers
+    *         Workers for the requests which block on a remote call
+    * @throws IOException
+    *         if the selector could not be opened
+    */
+    EventLoop(ChildServer childServer, ExecutorService workers) throws IOException {
+        this.childServer = childServer;
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.active = true;
+    }
+
+    /**
+    * Registers a newly accepted connection with this loop.
+    *
+    * @param channel
+    *        Connection to be served by this loop
+    */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+            } catch (IOException e) {
+                close(channel);
+            }
+        });
+    }
+
+    /**
+    * Runs the given task in the thread of this loop.
+    *
+    * @param task
+    *        Task to be run
+    */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+    * Stops the loop and closes all its connections.
+    */
+    public void stop() {
+        this.active = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long idleTimeout = 2L * NodeUtility.CONNECTION_IDLE_TIMEOUT;
+        long lastSweep = System.currentTimeMillis();
+
+        try {
+            while (active) {
+                selector.select(idleTimeout / 2);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            session.read();
+                        }
+                    } catch (IOException e) {
+                        session.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= idleTimeout / 2) {
+                    closeIdleSessions(now - idleTimeout);
+                    lastSweep = now;
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                close(key.channel());
+            }
+            selector.close();
+        } catch (ClosedSelectorException e) {
+            // Loop has already been closed
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+    * Closes the connections which have neither sent a request nor
+    * waited for a response since the given time.
+    *
+    * @param idleSince
+    *        Time in milliseconds before which the connection was last active
+    */
+    private void closeIdleSessions(long idleSince) {
+        for (SelectionKey key : selector.keys()) {
+            Session session = (Session) key.attachment();
+
+            if (session != null && !session.busy && session.lastActive < idleSince) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+    * Closes a channel, ignoring any error.
+    */
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Channel is being discarded anyway
+        }
+    }
+
+    /**
+    * State of a single connection served by this loop.  Only the thread
+    * of the loop touches it, workers hand their responses over with execute.
+    * Format of the connection is decided by its very first byte, a version
+    * byte asks for the binary format, anything else is a text request.
+    */
+    private class Session {
+        // Connection to the client
+        private final SocketChannel channel;
+
+        // Format spoken over the connection, UNDECIDED until the first byte
+        private byte format;
+
+        // Bytes of the request line read so far, text format only
+        private byte[] line;
+
+        // Number of valid bytes in line
+        private int lineLength;
+
+        // Bytes of the request frames read so far, binary format only
+        private ByteBuffer frame;
+
+        // Buffer reused to encode the responses, binary format only
+        private ByteBuffer encodeBuffer;
+
+        // Requests received but not yet served
+        private final Deque<Message> pending;
+
+        // Responses waiting to be written, kept ready to be filled
+        private ByteBuffer writeBuffer;
+
+        // Whether a worker is serving a request of this connection
+        private boolean busy;
+
+        // Time at which the connection was last active
+        private long lastActive;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+            this.format = UNDECIDED;
+            this.pending = new ArrayDeque<>();
+            this.writeBuffer = ByteBuffer.allocate(256);
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        /**
+        * Reads whatever has arrived and serves the complete requests.
+        */
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            readBuffer.flip();
+
+            if (format == UNDECIDED && readBuffer.hasRemaining()) {
+                byte first = readBuffer.get(readBuffer.position());
+
+                if (Protocol.isVersionByte(first)) {
+                    readBuffer.get();
+                    format = BINARY;
+                    frame = ByteBuffer.allocate(256);
+                    append(ByteBuffer.wrap(new byte[] {(byte) Math.min(first, Protocol.VERSION)}));
+                } else {
+                    format = TEXT;
+                    line = new byte[256];
+                }
+            }
+
+            try {
+                if (format == BINARY) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
+            } catch (RuntimeException e) {
+                // Malformed request, client treats a closed connection as failure
+                close();
+                return;
+            }
+            serve();
+
+            if (writeBuffer.position() > 0) {
+                flush();
+            }
+        }
+
+        /**
+        * Collects the complete request lines of the text format.
+        */
+        private void readLines() {
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    pending.add(Protocol.parseRequest(new String(line, 0, length, CHARSET)));
+                    lineLength = 0;
+                } else {
+                    if (lineLength == line.length) {
+                        byte[] larger = new byte[line.length * 2];
+                        System.arraycopy(line, 0, larger, 0, lineLength);
+                        line = larger;
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        /**
+        * Collects the complete request frames of the binary format.
+        */
+        private void readFrames() {
+            frame = ensure(frame, readBuffer.remaining());
+            frame.put(readBuffer);
+
+            while (frame.position() >= 4) {
+                int length = frame.getInt(0);
+
+                if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                    throw new IllegalArgumentException("Invalid frame length " + length);
+                } else if (frame.position() < 4 + length) {
+                    frame = ensure(frame, 4 + length - frame.position());
+                    break;
+                }
+
+                int end = frame.position();
+                frame.flip();
+                frame.position(4);
+                frame.limit(4 + length);
+                pending.add(Protocol.decode(frame));
+
+                frame.limit(end);
+                frame.position(4 + length);
+                frame.compact();
+            }
+        }
+
+        /**
+        * Serves the pending requests until one of them has to wait on a worker.
+        */
+        void serve() throws IOException {
+            while (!busy && !pending.isEmpty()) {
+                Message request = pending.poll();
+
+                if (!childServer.isBlocking(request)) {
+                    Message response = process(request);
+
+                    if (response == null) {
+                        close();
+                        return;
+                    }
+                    write(response);
+                    continue;
+                }
+
+                busy = true;
+                CompletableFuture<Message> inFlight = childServer.getResponseInFlight(request);
+
+                if (inFlight != null) {
+                    // Same lookup is being resolved, its result is shared once it arrives
+                    inFlight.copy()
+                            .orTimeout(NodeUtility.LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS)
+                            .whenComplete((response, exception) -> execute(() -> {
+                                if (exception == null) {
+                                    complete(response);
+                                } else {
+                                    dispatch(request);
+                                }
+                            }));
+                } else {
+                    dispatch(request);
+                }
+
+                if (!channel.isOpen()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+        * Hands a request which would block over to the workers.
+        */
+        void dispatch(Message request) {
+            try {
+                workers.execute(() -> {
+                    Message response = process(request);
+                    execute(() -> complete(response));
+                });
+            } catch (RejectedExecutionException e) {
+                // Workers are saturated, client treats a closed connection as failure
+                close();
+            }
+        }
+
+        /**
+        * Serves a single request, a failure is reported by null so that
+        * the connection gets closed, as the client treats that as failure.
+        */
+        Message process(Message request) {
+            try {
+                return childServer.process(request);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        /**
+        * Writes the response produced by a worker and resumes serving.
+        */
+        void complete(Message response) {
+            busy = false;
+            lastActive = System.currentTimeMillis();
+
+            if (!channel.isOpen()) {
+                return;
+            } else if (response == null) {
+                close();
+                return;
+            }
+            try {
+                write(response);
+                serve();
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+        * Queues the response in the format of the connection.  It is written
+        * out once all the requests which have arrived so far are served.
+        */
+        void write(Message response) {
+            if (format == BINARY) {
+                encodeBuffer = Protocol.encode(response, encodeBuffer);
+                append(encodeBuffer);
+            } else {
+                byte[] bytes = (Protocol.toTextResponse(response) + "\n").getBytes(CHARSET);
+                append(ByteBuffer.wrap(bytes));
+            }
+        }
+
+        private void append(ByteBuffer bytes) {
+            writeBuffer = ensure(writeBuffer, bytes.remaining());
+            writeBuffer.put(bytes);
+        }
+
+        /**
+        * Writes the queued responses, waiting for the channel to become
+        * writable if it cannot take them all at once.
+        */
+        void flush() throws IOException {
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+            SelectionKey key = channel.keyFor(selector);
+
+            if (writeBuffer.position() > 0) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            pending.clear();
+            EventLoop.close(channel);
+        }
+    }
+
+    /**
+    * Makes sure that the buffer, ready to be filled, has room for some more bytes.
+    *
+    * @param  buffer
+    *         Buffer being filled
+    * @param  required
+    *         Number of bytes yet to be put
+    * @return the same buffer if it has room, a larger copy otherwise
+    */
+    private static ByteBuffer ensure(ByteBuffer buffer, int required) {
+        if (buffer.remaining() >= required) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + required));
+        buffer.flip();
+        return larger.put(buffer);
+    }
+}
@@ -1,66 +1,101 @@
-import java.net.InetSocketAddress;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
 * This class implements FixFingers which takes care of updating
 * the fingers upon dynamic joins and failures. 
 * 
+* A lookup may wait on a hung node for long, so it is made on a thread 
+* of its own, and a round waits for it at most NodeUtility.MAINTENANCE_TIMEOUT. 
+* A lookup which has not completed by then is waited for by the next 
+* round, instead of starting another, so that a node holds up at most 
+* one thread, and none of the threads shared by the maintenance tasks. 
+* 
 * @author Vijay Kumar
 */
 
-public class FixFingers implements Runnable {
+public class FixFingers extends PeriodicTask {
+    // Threads making the lookups of the fingers of all the nodes
+    private static final ExecutorService LOOKUPS = Executors.newCachedThreadPool(task -> {
+        Thread thread = NodeUtility.newThread(task, "FixFingers-Lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     // Node for which the thread will update the fingers
     private Node node; 
     
     // Random generator to find the random index to be updated
     private Random random; 
     
-    /**
-    * Boolean value to keep track of when to stop. Kept as volatile 
-    * so that the value of active is always checked from the main 
-    * memory instead of storing it in a cache. 
-    */
-    private volatile boolean active; 
+    // Lookup of the finger being updated, null if none is in progress
+    private CompletableFuture<Peer> lookup; 
+    
+    // Index of the finger being looked up
+    private int fingerIndex; 
     
     /**
     * Initializes the object.
     */
     FixFingers(Node node) {
+        super(NodeUtility.FIX_FINGERS_INTERVAL, NodeUtility.MAINTENANCE_MAX_INTERVAL); 
         this.node = node;  
-        this.active = true; 
         this.random = new Random(); 
     }
     
     /**
-    * Stops the thread. 
+    * Stops the task. 
     */ 
+    @Override
     public void stop() {
-        this.active = false; 
+        super.stop(); 
+        System.out.printf("Thread FixFingers has stopped working.\n"); 
     }
     
     /**
     * Selects a finger at random and updates its value. 
+    * 
+    * @return true, if the finger has changed or could not be looked up 
+    *         false, otherwise
     */
     @Override
-    public void run() {
+    protected boolean runOnce() {
+        // With a single bit there is only finger 0, the successor, which is kept by Stabilize 
+        if (NodeUtility.NUMBER_OF_AVAILABLE_BITS < 2) {
+            return false; 
+        }
         
-        while (active) {
-            int fingerIndex = random.nextInt(NodeUtility.NUMBER_OF_AVAILABLE_BITS - 1) + 1; 
-            int ithStep = NodeUtility.getithStep(fingerIndex); 
-            int fingerID = (node.key + ithStep) % NodeUtility.KEYSPACE;
-            InetSocketAddress finger = node.getSuccessor(fingerID);  
-            
-            synchronized(node) {
-                node.fingers[fingerIndex] = finger; 
-            }
-            
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException exception) {
-                exception.printStackTrace();
-            }
+        if (lookup == null) {
+            fingerIndex = random.nextInt(NodeUtility.NUMBER_OF_AVAILABLE_BITS - 1) + 1; 
+            long ithStep = NodeUtility.getithStep(fingerIndex); 
+            long fingerID = NodeUtility.addToKey(node.key, ithStep);
+            lookup = CompletableFuture.supplyAsync(() -> node.getSuccessor(fingerID), LOOKUPS); 
         }
         
-        System.out.printf("Thread FixFingers has stopped working.\n"); 
+        Peer finger; 
+        try {
+            finger = lookup.get(NodeUtility.MAINTENANCE_TIMEOUT, TimeUnit.MILLISECONDS); 
+        } catch (TimeoutException exception) {
+            return true; 
+        } catch (InterruptedException | ExecutionException exception) {
+            finger = null; 
+        }
+        lookup = null; 
+        
+        // Lookup has failed, the finger is kept until a later round 
+        if (finger == null) {
+            return true; 
+        }
+        
+        synchronized(node) {
+            Peer previous = node.fingers[fingerIndex]; 
+            node.fingers[fingerIndex] = finger; 
+            return !finger.equals(previous); 
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,452 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.ObjLongConsumer;
+
+/**
+* This class implements the store of the keys, i.e, the names of files, a
+* node is responsible for, along with their values.  Keys are kept
+* ordered by their position on the ring, i.e, the hash of the name, so
+* that the keys of a range are found without looking at the others.
+* Handing over the range of a joining node thus takes O(log n + k) for
+* the k keys handed over, rather than a pass over all the n keys of the
+* node.
+*
+* Ranges are open on the left and closed on the right, just like the range
+* (predecessor, node] a node is responsible for, and wrap around zero when
+* the right border is less than the left one.
+*
+* Keys are not kept as a string and an array each, but copied along with
+* their values into a ValueArena outside the heap, and the index refers to
+* them by their handles.  A key added without a value, e.g, a generated
+* file, has the empty value.  Once half of the arena is taken by released
+* records, or it runs out of room, the arena is compacted in place.
+*
+* @author Vijay Kumar
+*/
+
+public class KeyStore {
+    // Keys at each position on the ring, by the position
+    private final TreeMap<Long, Bucket> keys;
+
+    // Names and values of the keys
+    private final ValueArena values;
+
+    // Total number of names stored
+    private int size;
+
+    // Number of times the arena has been compacted
+    private int compactions;
+
+    // Log to which every change is appended, if the keys are to survive a restart
+    private WriteAheadLog log;
+
+    public KeyStore() {
+        this(NodeUtility.STORE_SLAB_SIZE, NodeUtility.STORE_CAPACITY);
+    }
+
+    /**
+    * Initializes the store.
+    *
+    * @param slabSize
+    *        Size in bytes of a slab of the arena
+    * @param capacity
+    *        Maximum number of bytes taken by the arena
+    */
+    public KeyStore(int slabSize, long capacity) {
+        this.keys = new TreeMap<>();
+        this.values = new ValueArena(slabSize, capacity);
+    }
+
+    /**
+    * Starts appending every change to the given log.  Changes are made
+    * durable by commit.
+    *
+    * @param log
+    *        Log to which the changes are appended
+    */
+    public synchronized void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+    * Makes the changes made so far durable, along with those of the other
+    * threads which commit at the same time.
+    *
+    * @return true, if the changes are durable or no log is kept
+    *         false, if the log could not be written
+    */
+    public boolean commit() {
+        WriteAheadLog log;
+        synchronized(this) {
+            log = this.log;
+        }
+        return log == null || log.sync();
+    }
+
+    /**
+    * Adds a key to the store with the empty value, unless it is present.
+    *
+    * @param  name
+    *         name of the key
+    * @return true, if the key has been added
+    *         false, if it was present already or there is no room for it
+    */
+    public boolean add(String name) {
+        return add(name, new byte[0]);
+    }
+
+    /**
+    * Adds a key to the store along with its value, unless it is present.
+    * A key handed over along with its value does not replace the value
+    * stored meanwhile.
+    *
+    * @param  name
+    *         name of the key
+    * @param  value
+    *         value of the key
+    * @return true, if the key has been added
+    *         false, if it was present already or there is no room for it
+    */
+    public synchronized boolean add(String name, byte[] value) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        long id = NodeUtility.hashValue(name);
+        Bucket bucket = keys.computeIfAbsent(id, key -> new Bucket());
+
+        if (bucket.indexOf(values, bytes) >= 0) {
+            return false;
+        }
+
+        long handle = allocate(bytes, value);
+        if (handle == ValueArena.FULL) {
+            dropIfEmpty(id, bucket);
+            return false;
+        }
+        bucket.add(handle);
+        size++;
+
+        if (log != null) {
+            log.appendPut(name, value);
+        }
+        return true;
+    }
+
+    /**
+    * Stores the value of a key, replacing the earlier one if present.
+    *
+    * @param  name
+    *         name of the key
+    * @param  value
+    *         value of the key
+    * @return true, if the value has been stored
+    *         false, if there is no room for it
+    */
+    public synchronized boolean put(String name, byte[] value) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        long id = NodeUtility.hashValue(name);
+        Bucket bucket = keys.computeIfAbsent(id, key -> new Bucket());
+
+        long handle = allocate(bytes, value);
+        if (handle == ValueArena.FULL) {
+            dropIfEmpty(id, bucket);
+            return false;
+        }
+
+        // Arena may have been compacted meanwhile, so the key is searched for afterwards
+        int index = bucket.indexOf(values, bytes);
+        if (index >= 0) {
+            values.release(bucket.handles[index]);
+            bucket.handles[index] = handle;
+
+            if (values.needsCompaction()) {
+                compact();
+            }
+        } else {
+            bucket.add(handle);
+            size++;
+        }
+
+        if (log != null) {
+            log.appendPut(name, value);
+        }
+        return true;
+    }
+
+    /**
+    * Finds the value of a key.
+    *
+    * @param  name
+    *         name of the key
+    * @return value of the key, if present
+    *         null, otherwise
+    */
+    public synchronized byte[] get(String name) {
+        Bucket bucket = keys.get(NodeUtility.hashValue(name));
+        int index = bucket == null ? -1 : bucket.indexOf(values, name.getBytes(StandardCharsets.UTF_8));
+
+        return index < 0 ? null : values.value(bucket.handles[index]);
+    }
+
+    /**
+    * Checks whether a key is present in the store.
+    *
+    * @param  name
+    *         name of the key
+    * @return true, if the key is present
+    *         false, otherwise
+    */
+    public synchronized boolean contains(String name) {
+        Bucket bucket = keys.get(NodeUtility.hashValue(name));
+        return bucket != null && bucket.indexOf(values, name.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /**
+    * Removes a key from the store.
+    *
+    * @param  name
+    *         name of the key
+    * @return true, if the key was present
+    *         false, otherwise
+    */
+    public synchronized boolean remove(String name) {
+        long id = NodeUtility.hashValue(name);
+        Bucket bucket = keys.get(id);
+        int index = bucket == null ? -1 : bucket.indexOf(values, name.getBytes(StandardCharsets.UTF_8));
+
+        if (index < 0) {
+            return false;
+        }
+        values.release(bucket.handles[index]);
+        bucket.remove(index);
+        dropIfEmpty(id, bucket);
+        size--;
+
+        if (log != null) {
+            log.appendDelete(name);
+        }
+
+        if (values.needsCompaction()) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+    * Removes all the keys which lie in the range (left, right] and gives
+    * them back in the order of the ring, starting after left.
+    *
+    * @param  left
+    *         left border, excluded
+    * @param  right
+    *         right border, included
+    * @return names of the keys removed
+    */
+    public synchronized String[] removeRange(long left, long right) {
+        List<String> result = new ArrayList<>();
+
+        for (NavigableMap<Long, Bucket> range : ranges(left, right)) {
+            for (Bucket bucket : range.values()) {
+                for (int i = 0; i < bucket.count; i++) {
+                    result.add(values.name(bucket.handles[i]));
+                    values.release(bucket.handles[i]);
+                }
+            }
+            range.clear();
+        }
+        size -= result.size();
+
+        if (log != null && !result.isEmpty()) {
+            log.appendRemoveRange(left, right);
+        }
+
+        if (values.needsCompaction()) {
+            compact();
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+    * Collects the keys which lie in the range (left, right], in the order of
+    * the ring, without removing them.  Collection stops once at least limit
+    * keys have been collected, but the keys at the same position are always
+    * collected together, so that a position is never split across chunks.
+    *
+    * @param  left
+    *         left border, excluded
+    * @param  right
+    *         right border, included
+    * @param  limit
+    *         number of keys after which collection stops
+    * @param  names
+    *         list to which the names of the keys are added
+    * @param  values
+    *         list to which the values of the keys are added, may be null
+    * @return position of the last key collected, or left if none was collected
+    */
+    public synchronized long collectRange(long left, long right, int limit, List<String> names,
+                                          List<byte[]> values) {
+        long last = left;
+        int collected = 0;
+
+        for (NavigableMap<Long, Bucket> range : ranges(left, right)) {
+            for (Map.Entry<Long, Bucket> entry : range.entrySet()) {
+                if (collected >= limit) {
+                    return last;
+                }
+
+                Bucket bucket = entry.getValue();
+                for (int i = 0; i < bucket.count; i++) {
+                    names.add(this.values.name(bucket.handles[i]));
+                    if (values != null) {
+                        values.add(this.values.value(bucket.handles[i]));
+                    }
+                }
+                collected += bucket.count;
+                last = entry.getKey();
+            }
+        }
+        return last;
+    }
+
+    /**
+    * Passes every key along with its position on the ring to the action,
+    * in the order of the ring.
+    *
+    * @param action
+    *        action to be performed on every key
+    */
+    public synchronized void forEach(ObjLongConsumer<String> action) {
+        for (Map.Entry<Long, Bucket> entry : keys.entrySet()) {
+            Bucket bucket = entry.getValue();
+            for (int i = 0; i < bucket.count; i++) {
+                action.accept(values.name(bucket.handles[i]), entry.getKey());
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int getCompactions() {
+        return compactions;
+    }
+
+    /**
+    * Finds the number of bytes taken outside the heap by the arena.
+    *
+    * @return bytes allocated
+    */
+    public synchronized long allocatedBytes() {
+        return values.allocatedBytes();
+    }
+
+    /**
+    * Finds the number of bytes of the arena taken by released records.
+    *
+    * @return bytes of garbage
+    */
+    public synchronized long garbageBytes() {
+        return values.garbageBytes();
+    }
+
+    /**
+    * Copies a key into the arena, compacting the arena first if it has run
+    * out of room while holding at least a slab of released records.
+    */
+    private long allocate(byte[] name, byte[] value) {
+        long handle = values.allocate(name, value);
+
+        if (handle == ValueArena.FULL && values.garbageBytes() >= values.getSlabSize()) {
+            compact();
+            handle = values.allocate(name, value);
+        }
+        return handle;
+    }
+
+    /**
+    * Compacts the arena in place, and points the keys to the records at
+    * their new handles.  No memory is taken beyond the capacity of the
+    * arena, so compacting a full store cannot run out of memory.
+    */
+    private void compact() {
+        long[] handles = new long[size];
+        int next = 0;
+
+        for (Bucket bucket : keys.values()) {
+            for (int i = 0; i < bucket.count; i++) {
+                handles[next++] = bucket.handles[i];
+            }
+        }
+
+        Arrays.sort(handles);
+        long[] moved = values.compact(handles);
+
+        for (Bucket bucket : keys.values()) {
+            for (int i = 0; i < bucket.count; i++) {
+                bucket.handles[i] = moved[Arrays.binarySearch(handles, bucket.handles[i])];
+            }
+        }
+        compactions++;
+    }
+
+    private void dropIfEmpty(long id, Bucket bucket) {
+        if (bucket.count == 0) {
+            keys.remove(id);
+        }
+    }
+
+    /**
+    * Finds the views of the map making up the range (left, right], two of
+    * them if the range wraps around zero.
+    */
+    private List<NavigableMap<Long, Bucket>> ranges(long left, long right) {
+        List<NavigableMap<Long, Bucket>> ranges = new ArrayList<>(2);
+
+        if (left < right) {
+            ranges.add(keys.subMap(left, false, right, true));
+        } else if (left == right) {
+            // Range covers the whole ring, starting after left
+            ranges.add(keys.tailMap(left, false));
+            ranges.add(keys.headMap(left, true));
+        } else {
+            ranges.add(keys.tailMap(left, false));
+            ranges.add(keys.headMap(right, true));
+        }
+        return ranges;
+    }
+
+    /**
+    * Handles of the records of the keys at a single position on the ring,
+    * usually just one.
+    */
+    private static class Bucket {
+        private long[] handles = new long[1];
+
+        private int count;
+
+        private int indexOf(ValueArena values, byte[] name) {
+            for (int i = 0; i < count; i++) {
+                if (values.hasName(handles[i], name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void add(long handle) {
+            if (count == handles.length) {
+                handles = Arrays.copyOf(handles, count * 2);
+            }
+            handles[count++] = handle;
+        }
+
+        private void remove(int index) {
+            handles[index] = handles[--count];
+        }
+    }
+}
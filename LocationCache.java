@@ -0,0 +1,252 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+* This class implements a cache of the owners of key ranges, so that the
+* lookup of a key whose owner has been found recently takes a single hop
+* to that owner instead of the whole walk around the ring.
+*
+* An owner is responsible for the keys in the range (predecessor, owner].
+* Entries are kept ordered by the key of their owner, so the entry which
+* may cover a key is the one of the first owner at or after the key.  The
+* range of an entry starts out as just the keys looked up, and grows to
+* the whole range once the owner tells its predecessor.
+*
+* An entry is dropped once its time to live has passed, when its owner
+* fails or says that it no longer owns the key, and when a node is seen
+* to have joined inside its range.  Beyond the given capacity, the entry
+* closest to expiry makes room for the new one.
+*
+* @author Vijay Kumar
+*/
+
+public class LocationCache {
+    // Entries of the cache, by the key of their owner
+    private final TreeMap<Long, Entry> entries;
+
+    // Maximum number of entries
+    private final int capacity;
+
+    // Time in milliseconds for which an entry is trusted
+    private final long timeToLive;
+
+    // Lookups answered by an entry confirmed by its owner
+    private long hits;
+
+    // Lookups for which no entry was present
+    private long misses;
+
+    // Lookups for which the entry present had expired, or was refused by its owner
+    private long stale;
+
+    /**
+    * Initializes the cache.
+    *
+    * @param capacity
+    *        Maximum number of entries
+    * @param timeToLive
+    *        Time in milliseconds for which an entry is trusted
+    */
+    public LocationCache(int capacity, long timeToLive) {
+        this.entries = new TreeMap<>();
+        this.capacity = capacity;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+    * Finds the cached owner of the given key.  An expired entry is dropped
+    * and counted as stale.  Lookup is counted as a hit only once the owner
+    * has been confirmed.
+    *
+    * @param  id
+    *         key whose owner is sought
+    * @return Reference to the owner, if cached
+    *         null, otherwise
+    */
+    public synchronized Peer get(long id) {
+        Entry entry = entryFor(id);
+
+        if (entry == null) {
+            misses++;
+            return null;
+        } else if (entry.expiry < System.currentTimeMillis()) {
+            entries.remove(entry.owner.key);
+            stale++;
+            return null;
+        }
+        return entry.owner;
+    }
+
+    /**
+    * Records the owner of a key found by a lookup.  If the owner is already
+    * cached, its range is widened to cover the key.
+    *
+    * @param id
+    *        key which has been looked up
+    * @param owner
+    *        Reference to the owner of the key
+    */
+    public synchronized void put(long id, Peer owner) {
+        Entry entry = entries.get(owner.key);
+        long start = NodeUtility.addToKey(id, -1);
+
+        if (entry == null || !entry.owner.equals(owner)) {
+            if (entry == null && entries.size() >= capacity) {
+                evict();
+            }
+            entries.put(owner.key, new Entry(start, owner, System.currentTimeMillis() + timeToLive));
+        } else if (NodeUtility.distance(start, owner.key) > NodeUtility.distance(entry.predecessorKey, owner.key)) {
+            entry.predecessorKey = start;
+        }
+    }
+
+    /**
+    * Records that the owner has confirmed owning a key, along with its
+    * present predecessor.  Range of the entry becomes the whole range of
+    * the owner, and it is trusted afresh.
+    *
+    * @param owner
+    *        Reference to the owner
+    * @param predecessor
+    *        Reference to the predecessor of the owner
+    */
+    public synchronized void confirm(Peer owner, Peer predecessor) {
+        Entry entry = entries.get(owner.key);
+        hits++;
+
+        if (entry != null && entry.owner.equals(owner)) {
+            entry.predecessorKey = predecessor.key;
+            entry.expiry = System.currentTimeMillis() + timeToLive;
+        }
+    }
+
+    /**
+    * Drops the entry of an owner which has failed, or which no longer owns
+    * the key it was asked for.
+    *
+    * @param owner
+    *        Reference to the owner
+    */
+    public synchronized void invalidate(Peer owner) {
+        Entry entry = entries.get(owner.key);
+
+        if (entry != null && entry.owner.equals(owner)) {
+            entries.remove(owner.key);
+            stale++;
+        }
+    }
+
+    /**
+    * Drops the entries whose range covers the given node, as a node which
+    * has joined inside a range takes over a part of it.
+    *
+    * @param node
+    *        Reference to a node seen in the ring
+    */
+    public synchronized void invalidateRange(Peer node) {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            if (!entry.owner.equals(node)
+                && NodeUtility.belongs(entry.predecessorKey, false, entry.owner.key, true, node.key)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+    * Drops all the entries.
+    */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getStale() {
+        return stale;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+    * Prints the number of entries along with the hit, miss and stale rates.
+    */
+    public synchronized void printStatistics() {
+        long lookups = Math.max(hits + misses + stale, 1);
+
+        System.out.printf("Location Cache\n\n");
+        System.out.printf("%-10s%d of %d\n", "Entries", entries.size(), capacity);
+        System.out.printf("%-10s%-10d%.1f%%\n", "Hits", hits, 100.0 * hits / lookups);
+        System.out.printf("%-10s%-10d%.1f%%\n", "Misses", misses, 100.0 * misses / lookups);
+        System.out.printf("%-10s%-10d%.1f%%\n\n", "Stale", stale, 100.0 * stale / lookups);
+    }
+
+    /**
+    * Finds the entry whose range covers the key, i.e, that of the first
+    * owner at or after the key, going around the ring.
+    */
+    private Entry entryFor(long id) {
+        Map.Entry<Long, Entry> candidate = entries.ceilingEntry(id);
+        if (candidate == null) {
+            candidate = entries.firstEntry();
+        }
+
+        if (candidate == null) {
+            return null;
+        }
+        Entry entry = candidate.getValue();
+        return NodeUtility.belongs(entry.predecessorKey, false, entry.owner.key, true, id) ? entry : null;
+    }
+
+    /**
+    * Drops the expired entries, or if none has expired, the one closest to expiry.
+    */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Entry oldest = null;
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            if (entry.expiry < now) {
+                iterator.remove();
+            } else if (oldest == null || entry.expiry < oldest.expiry) {
+                oldest = entry;
+            }
+        }
+
+        if (entries.size() >= capacity && oldest != null) {
+            entries.remove(oldest.owner.key);
+        }
+    }
+
+    /**
+    * Owner of the range (predecessorKey, owner.key], trusted until expiry.
+    */
+    private static class Entry {
+        private long predecessorKey;
+
+        private final Peer owner;
+
+        private long expiry;
+
+        private Entry(long predecessorKey, Peer owner, long expiry) {
+            this.predecessorKey = predecessorKey;
+            this.owner = owner;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+* This enum lists the ways a node can look up the successor of a key. 
+* 
+* RECURSIVE: the lookup is handed over to the closest preceding finger, 
+* which in turn hands it over to its own, until the predecessor of the 
+* key is found.  Every node along the way waits on the next one. 
+* 
+* ITERATIVE: the node which started the lookup asks every hop for its 
+* closest preceding fingers and walks towards the key itself.  A hop only 
+* answers from its own state, so no node waits on another, and a hop which 
+* does not answer in time is replaced by one of the other fingers offered. 
+* 
+* @author Vijay Kumar
+*/
+
+public enum LookupMode {
+    RECURSIVE, 
+    ITERATIVE
+}
@@ -0,0 +1,279 @@
+/**
+* This class implements a message exchanged between the nodes of the chord
+* ring, either a request or its response.  A message consists of an opcode,
+* which decides the meaning of the message, and the few fields relevant for
+* that opcode.  Fields not used by an opcode are left at their defaults.
+*
+* Messages are converted to and from their presentation on the wire by the
+* class Protocol, both for the binary and the older text format.
+*
+* @author Vijay Kumar
+*/
+
+public class Message {
+    /**********************************************************************************************
+    *                                                                                            *
+    *                                       Opcodes                                              *
+    *                                                                                            *
+    **********************************************************************************************/
+
+    // Request whose command is not known to this node
+    public static final byte UNKNOWN = 0;
+
+    public static final byte YOUR_SUCCESSOR = 1;
+
+    public static final byte YOUR_PREDECESSOR = 2;
+
+    // Fields: id
+    public static final byte FIND_SUCCESSOR = 3;
+
+    // Fields: id
+    public static final byte FIND_PREDECESSOR = 4;
+
+    // Fields: peer
+    public static final byte CHANGE_PREDECESSOR = 5;
+
+    // Fields: peer
+    public static final byte CHANGE_SUCCESSOR = 6;
+
+    // Fields: index, peer
+    public static final byte UPDATE_ITH_FINGER = 7;
+
+    // Fields: id of the first predecessor, secondId of the second predecessor
+    public static final byte TRANSFER_KEYS = 8;
+
+    // Fields: peer
+    public static final byte NOTIFY = 9;
+
+    public static final byte ALIVE = 10;
+
+    // Asks for the next hop of an iterative lookup. Fields: id
+    public static final byte NEXT_HOP = 11;
+
+    // Asks for the successors of many keys, answered by PEERS in the same order. Fields: ids
+    public static final byte FIND_SUCCESSORS = 12;
+
+    /**
+    * Asks for the next chunk of the keys handed over to a joining node, i.e,
+    * those after cursor up to id, acknowledging the ones up to cursor.
+    * Fields: id of the first predecessor, secondId of the second predecessor,
+    * cursor, index as the maximum number of keys in the chunk
+    */
+    public static final byte TRANSFER_CHUNK = 13;
+
+    // Stores the value of a key. Fields: name, value, index as the number of forwards left
+    public static final byte PUT = 14;
+
+    // Asks for the value of a key, answered by VALUE. Fields: name, index as the number of forwards left
+    public static final byte GET = 15;
+
+    // Removes a key along with its value. Fields: name, index as the number of forwards left
+    public static final byte DELETE = 16;
+
+    /**
+    * Notifies the successor, and asks for its predecessor and nearest
+    * successors in the same round trip, answered by NEIGHBORS. Fields: peer
+    */
+    public static final byte STABILIZE_EXCHANGE = 17;
+
+    // Asks for the nearest successors of a node, answered by PEERS, nearest first
+    public static final byte YOUR_SUCCESSORS = 18;
+
+    /**
+    * Asks for the value of a key among the keys held by the node, whether
+    * or not it is responsible for the key, answered by VALUE.  Used while
+    * the keys of a joining node are handed over. Fields: name
+    */
+    public static final byte FETCH = 19;
+
+    // Response carrying a node. Fields: peer
+    public static final byte ADDRESS = 64;
+
+    // Response acknowledging a request
+    public static final byte DONE = 65;
+
+    // Response carrying names of files. Fields: keys
+    public static final byte KEYS = 66;
+
+    // Response carrying nodes, closest preceding fingers first. Fields: peers
+    public static final byte PEERS = 67;
+
+    // Response carrying a chunk of keys handed over. Fields: keys, values, cursor of the last key, done
+    public static final byte KEYS_CHUNK = 68;
+
+    // Response carrying the value of a key, null if the key is not present. Fields: value
+    public static final byte VALUE = 69;
+
+    // Response refusing a request which could not be served
+    public static final byte FAILED = 70;
+
+    // Response carrying the predecessor and the nearest successors of a node. Fields: peer, peers
+    public static final byte NEIGHBORS = 71;
+
+
+    /**********************************************************************************************
+    *                                                                                            *
+    *                                       Fields                                               *
+    *                                                                                            *
+    **********************************************************************************************/
+
+    // Decides the meaning of the message
+    public final byte opcode;
+
+    // Key or node identifier carried by the message
+    public long id;
+
+    // Second key or node identifier carried by the message
+    public long secondId;
+
+    // Index of a finger
+    public int index;
+
+    // Reference to a node
+    public Peer peer;
+
+    // Names of files
+    public String[] keys;
+
+    // References to some nodes
+    public Peer[] peers;
+
+    // Keys or node identifiers carried by the message
+    public long[] ids;
+
+    // Position on the ring up to which keys have been handed over
+    public long cursor;
+
+    // Whether nothing is left to be handed over
+    public boolean done;
+
+    // Name of a key
+    public String name;
+
+    // Value of a key
+    public byte[] value;
+
+    // Values of the keys, in the order of keys
+    public byte[][] values;
+
+
+    /**********************************************************************************************
+    *                                                                                            *
+    *                                      Constructors                                          *
+    *                                                                                            *
+    **********************************************************************************************/
+
+    /**
+    * Message without any field, e.g, YOUR_SUCCESSOR or DONE.
+    */
+    public Message(byte opcode) {
+        this.opcode = opcode;
+    }
+
+    /**
+    * Message carrying an identifier, e.g, FIND_SUCCESSOR.
+    */
+    public Message(byte opcode, long id) {
+        this.opcode = opcode;
+        this.id = id;
+    }
+
+    /**
+    * Message carrying two identifiers, e.g, TRANSFER_KEYS.
+    */
+    public Message(byte opcode, long id, long secondId) {
+        this.opcode = opcode;
+        this.id = id;
+        this.secondId = secondId;
+    }
+
+    /**
+    * Message carrying a node, e.g, NOTIFY or ADDRESS.
+    */
+    public Message(byte opcode, Peer peer) {
+        this.opcode = opcode;
+        this.peer = peer;
+    }
+
+    /**
+    * Message carrying an index and a node, e.g, UPDATE_ITH_FINGER.
+    */
+    public Message(byte opcode, int index, Peer peer) {
+        this.opcode = opcode;
+        this.index = index;
+        this.peer = peer;
+    }
+
+    /**
+    * Message carrying names of files, i.e, KEYS.
+    */
+    public Message(byte opcode, String[] keys) {
+        this.opcode = opcode;
+        this.keys = keys;
+    }
+
+    /**
+    * Message carrying identifiers, e.g, FIND_SUCCESSORS.
+    */
+    public Message(byte opcode, long[] ids) {
+        this.opcode = opcode;
+        this.ids = ids;
+    }
+
+    /**
+    * Message asking for a chunk of keys, i.e, TRANSFER_CHUNK.
+    */
+    public Message(byte opcode, long id, long secondId, long cursor, int index) {
+        this.opcode = opcode;
+        this.id = id;
+        this.secondId = secondId;
+        this.cursor = cursor;
+        this.index = index;
+    }
+
+    /**
+    * Message carrying a chunk of keys along with their values, i.e, KEYS_CHUNK.
+    */
+    public Message(byte opcode, String[] keys, byte[][] values, long cursor, boolean done) {
+        this.opcode = opcode;
+        this.keys = keys;
+        this.values = values;
+        this.cursor = cursor;
+        this.done = done;
+    }
+
+    /**
+    * Message carrying a key and its value, e.g, PUT or GET.
+    */
+    public Message(byte opcode, String name, byte[] value, int index) {
+        this.opcode = opcode;
+        this.name = name;
+        this.value = value;
+        this.index = index;
+    }
+
+    /**
+    * Message carrying a value, i.e, VALUE.
+    */
+    public Message(byte opcode, byte[] value) {
+        this.opcode = opcode;
+        this.value = value;
+    }
+
+    /**
+    * Message carrying nodes, i.e, PEERS.
+    */
+    public Message(byte opcode, Peer[] peers) {
+        this.opcode = opcode;
+        this.peers = peers;
+    }
+
+    /**
+    * Message carrying a node along with some others, i.e, NEIGHBORS.
+    */
+    public Message(byte opcode, Peer peer, Peer[] peers) {
+        this.opcode = opcode;
+        this.peer = peer;
+        this.peers = peers;
+    }
+}
@@ -1,4 +1,6 @@
-import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -10,49 +12,63 @@ import java.util.Random;
 * @author Vijay Kumar
 */
 
-public class NearestSuccessors implements Runnable {
+public class NearestSuccessors extends PeriodicTask {
     // Node whose successors is to be contained.
     private Node node; 
     
     // Random generator to get the random index whose successor is to be updated
     private Random random;  
     
-    /**
-    * Boolean value to keep track of when to stop. Kept as volatile 
-    * so that the value of active is always checked from the main 
-    * memory instead of storing it in a cache. 
-    */
-    private volatile boolean active; 
+    // Whether the list has been copied from the successor since the last round
+    private volatile boolean adopted; 
     
+    // Last successor found not to know YourSuccessors, so that it is not asked again
+    private Peer olderSuccessor; 
+
     /**
-    * Contains the list of r nearest successors of the node. Value of r 
+    * Contains the references to r nearest successors of the node. Value of r 
     * has been mentioned in NodeUtility class. 
     */
-    public InetSocketAddress[] successors; 
+    public Peer[] successors; 
     
     /**
     * Initializes the object. 
     */
     NearestSuccessors(Node node) {
+        super(NodeUtility.NEAREST_SUCCESSORS_INTERVAL, NodeUtility.MAINTENANCE_MAX_INTERVAL); 
         this.node = node; 
-        this.active = true; 
         this.random = new Random(); 
-        this.successors = new InetSocketAddress[NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS + 1];
+        this.successors = new Peer[NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS + 1];
         initialize();
     }
     
     /**
-    * Initializes the successors list. 
+    * Initializes the successors list, copying that of the immediate successor 
+    * if it knows YourSuccessors, or walking the successors one by one otherwise. 
+    * Entries beyond a successor which does not answer, and the spare one, 
+    * repeat the last successor known, as for a ring smaller than the list. 
     */
     private void initialize() {
         successors[0] = node.getSuccessor();
         
-        for (int i = 1; i < NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS; i++) {
-            InetSocketAddress currentSuccessor = successors[i - 1]; 
-            String response = NodeUtility.processRequest(currentSuccessor, "YourSuccessor"); 
-            InetSocketAddress nextSuccessor = NodeUtility.parseInetSocketAddress(response); 
+        if (copyFromSuccessor() != null) {
+            return; 
+        }
+        
+        int i = 1; 
+        for (; i < NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS; i++) {
+            Peer currentSuccessor = successors[i - 1]; 
+            Peer nextSuccessor = NodeUtility.requestPeer(currentSuccessor, new Message(Message.YOUR_SUCCESSOR), 
+                                                         NodeUtility.MAINTENANCE_TIMEOUT); 
+            if (nextSuccessor == null) {
+                break; 
+            }
             successors[i] = nextSuccessor; 
         }
+        
+        for (; i < successors.length; i++) {
+            successors[i] = successors[i - 1]; 
+        }
     }
     
     /**
@@ -81,18 +97,105 @@ public class NearestSuccessors implements Runnable {
     * Called by Stabilize when the immediate successor of the node 
     * has failed. 
     * 
-    * @return InetSocketAddress of the new successor of this node
+    * @return Reference to the new successor of this node
     */
-    public InetSocketAddress nextSuccessor() {
+    public Peer nextSuccessor() {
         shiftSuccessors(0);
         return successors[0]; 
     }
     
     /**
-    * Stops this node. 
+    * Takes the list of the immediate successor, shifted by one, as the rest 
+    * of this list.  Called by Stabilize, which gets it along with the 
+    * predecessor of the successor, so the rounds of this task have nothing 
+    * left to probe as long as it does. 
+    * 
+    * @param  successor
+    *         Reference to the immediate successor of the node
+    * @param  list
+    *         nearest successors of the immediate successor, nearest first
+    * @return true, if the list has changed 
+    *         false, otherwise
+    */
+    public boolean adopt(Peer successor, Peer[] list) {
+        adopted = true; 
+        return replace(successor, list); 
+    }
+    
+    /**
+    * Replaces the list with the given successor followed by its own list. 
+    * 
+    * @return true, if the list has changed 
+    *         false, otherwise
+    */
+    private boolean replace(Peer successor, Peer[] list) {
+        Peer[] updated = new Peer[successors.length]; 
+        updated[0] = successor; 
+        
+        // A ring smaller than the list repeats its last node
+        for (int i = 1; i < updated.length; i++) {
+            updated[i] = i - 1 < list.length ? list[i - 1] : updated[i - 1]; 
+        }
+        
+        synchronized(successors) {
+            boolean changed = !Arrays.equals(updated, successors); 
+            System.arraycopy(updated, 0, successors, 0, successors.length); 
+            return changed; 
+        }
+    }
+    
+    /**
+    * Copies the whole list of the immediate successor in a single request, 
+    * so that entries after a failure are repaired at once rather than one 
+    * hop per round. 
+    * 
+    * @return true or false, as the list has changed or not, 
+    *         null, if the successor could not be reached or does not know YourSuccessors
+    */
+    private Boolean copyFromSuccessor() {
+        Peer successor = successors[0]; 
+        
+        // A text-only successor is not asked, the request would only cost its connection
+        if (successor.equals(olderSuccessor) || NodeUtility.isTextOnly(successor)) {
+            return null; 
+        }
+        
+        Message response = NodeUtility.processRequest(successor, new Message(Message.YOUR_SUCCESSORS), 
+                                                      NodeUtility.MAINTENANCE_TIMEOUT); 
+        if (response != null && response.opcode == Message.PEERS && response.peers.length > 0) {
+            return replace(successor, response.peers); 
+        } else if (response != null) {
+            olderSuccessor = successor; 
+        }
+        return null; 
+    }
+    
+    /**
+    * Copies the list of nearest successors, leaving out the spare entry 
+    * kept for shifting. 
+    * 
+    * @return References to the nearest successors, nearest first
+    */
+    public Peer[] getSuccessors() {
+        synchronized(successors) {
+            List<Peer> list = new ArrayList<>(); 
+            
+            for (int i = 0; i < NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS; i++) {
+                if (successors[i] != null) {
+                    list.add(successors[i]); 
+                }
+            }
+            return list.toArray(new Peer[0]); 
+        }
+    }
+    
+    /**
+    * Stops the task. 
     */
+    @Override
     public void stop() {
-        this.active = false; 
+        super.stop(); 
+        System.out.printf("Thread Nearest Successors has stopped functioning.\n"); 
     }
     
     /**
@@ -102,9 +205,8 @@ public class NearestSuccessors implements Runnable {
         System.out.printf("Nearest Successors\n\n"); 
         System.out.printf("%-8s%-8s\n\n", "S.No.", "Succesor Key"); 
         for (int i = 0; i <= NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS; i++) {
-            InetSocketAddress successor = successors[i]; 
-            int successorKey = NodeUtility.hashValue(successor); 
-            System.out.printf("%-8d%-8d\n",i, successorKey); 
+            Peer successor = successors[i]; 
+            System.out.printf("%-8d%-8d\n",i, successor.key); 
         }
         System.out.println(); 
     }
@@ -112,39 +214,48 @@ public class NearestSuccessors implements Runnable {
     /**
     * Hypothesis behind the implementation of nearest successor is that if the 
     * immediate successor in the successor list is right, then the whole successor 
-    * list would be right eventually. 
+    * list would be right eventually.  A round following a list copied from 
+    * the successor by Stabilize has nothing to probe, and is skipped.  Else 
+    * the list of the successor is copied, and only a successor which does not 
+    * know YourSuccessors has a random entry probed with YourSuccessor. 
+    * 
+    * @return true, if the successor list has changed or a successor could not be reached 
+    *         false, otherwise
     */
     @Override
-    public void run() {
-        while (active) {
-            int index = random.nextInt(NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS); 
-            InetSocketAddress successorUnderScrutiny = successors[index]; 
-            String response = NodeUtility.processRequest(successorUnderScrutiny, "YourSuccessor"); 
-            
-            if (response != null) {
-                InetSocketAddress updatedNextSuccessor = NodeUtility.parseInetSocketAddress(response); 
-                synchronized(successors) {
-                    successors[index + 1] = updatedNextSuccessor; 
-                }
-            } else if (index != 0) {
-                shiftSuccessors(index);
-            }
-            
-            /**
-            * If the immediate successor has failed, then nothing is done as updation 
-            * of immediate successor is the job of stabilize. In such a case, within 
-            * no time, stabilize would call the method nextSuccessor of this object 
-            * and updates the first successor. As per the hypothesis, list would be
-            * true eventually. 
-            */
-            
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException exception) {
-                exception.printStackTrace();
+    protected boolean runOnce() {
+        if (adopted) {
+            adopted = false; 
+            return false; 
+        }
+        
+        Boolean copied = copyFromSuccessor(); 
+        if (copied != null) {
+            return copied; 
+        }
+        
+        int index = random.nextInt(NodeUtility.NUMBER_OF_NEAREST_SUCCESSORS); 
+        Peer successorUnderScrutiny = successors[index]; 
+        Peer updatedNextSuccessor = NodeUtility.requestPeer(successorUnderScrutiny, new Message(Message.YOUR_SUCCESSOR), 
+                                                            NodeUtility.MAINTENANCE_TIMEOUT); 
+        
+        if (updatedNextSuccessor != null) {
+            synchronized(successors) {
+                boolean changed = !updatedNextSuccessor.equals(successors[index + 1]); 
+                successors[index + 1] = updatedNextSuccessor; 
+                return changed; 
             }
+        } else if (index != 0) {
+            shiftSuccessors(index);
         }
         
-        System.out.printf("Thread Nearest Successors has stopped functioning.\n"); 
+        /**
+        * If the immediate successor has failed, then nothing is done as updation 
+        * of immediate successor is the job of stabilize. In such a case, within 
+        * no time, stabilize would call the method nextSuccessor of this object 
+        * and updates the first successor. As per the hypothesis, list would be
+        * true eventually. 
+        */
+        return true; 
     }
 }
\ No newline at end of file
@@ -1,9 +1,27 @@
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap; 
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
 
 /**
 * This class implements the Node of a chord ring. Implementation 
@@ -22,7 +40,7 @@ public class Node {
     
     
     // Public identifier of this node
-    public int key; 
+    public long key; 
     
     // Server that will listen to the request on behalf of this node
     private Server server; 
@@ -30,14 +48,17 @@ public class Node {
     // InetSocketAddress of this node
     public InetSocketAddress address;
     
-    // InetSocketAddress of the immediate predecessor of this node
-    private InetSocketAddress predecessor; 
+    // Reference to this node, i.e, its address along with its key 
+    public Peer peer; 
     
-    // Contains the InetSocketAddress of the node at ith step in the finger table 
-    public InetSocketAddress[] fingers;  
+    // Reference to the immediate predecessor of this node
+    private Peer predecessor; 
+    
+    // Contains the reference to the node at ith step in the finger table 
+    public Peer[] fingers;  
     
     // Contains the files along with their keys this node is responsible for 
-    private Map<String, Integer> data; 
+    private final KeyStore data = new KeyStore(); 
     
     // Maintains the successors pointers in the case of failures. 
     public Stabilize stabilize; 
@@ -48,6 +69,46 @@ public class Node {
     // Maintains the finger table in the case of dynamic joins and failures.
     public FixFingers fixFingers; 
     
+    // Takes the snapshots of the keys, if they are to survive a restart
+    public Snapshot snapshot;
+    
+    // Saves the routing state for a restart, if the keys are to survive one
+    public RoutingState routing;
+    
+    // Node still handing over its keys to this one, null once the handover is complete
+    private volatile Peer handoverSource;
+    
+    // Keys in (handoverLeft, key] are being handed over
+    private long handoverLeft;
+    
+    // Position of the last key handed over, from where a stopped handover resumes
+    private long handoverCursor;
+    
+    // Set while a thread is handing over the keys
+    private final AtomicBoolean handingOver = new AtomicBoolean();
+    
+    // Keys removed while the handover is in progress, so that it does not bring them back
+    private final Set<String> handoverRemoved = ConcurrentHashMap.newKeySet();
+    
+    // Ranges handed over through TransferKeys, by the key of the new node, kept until it notifies this node
+    private final ConcurrentMap<Long, Long> handedOver = new ConcurrentHashMap<>();
+    
+    // Owners of the key ranges found by recent lookups 
+    public final LocationCache locationCache = 
+        new LocationCache(NodeUtility.LOCATION_CACHE_SIZE, NodeUtility.LOCATION_CACHE_TIME_TO_LIVE); 
+    
+    /**
+    * Lookups of successors and predecessors being resolved, by the key looked 
+    * up.  A lookup of a key already being resolved waits for that resolution 
+    * instead of walking the ring once more. 
+    */
+    private final ConcurrentMap<Long, CompletableFuture<Peer>> successorsInFlight = new ConcurrentHashMap<>(); 
+    
+    private final ConcurrentMap<Long, CompletableFuture<Peer>> predecessorsInFlight = new ConcurrentHashMap<>(); 
+    
+    // Number of lookups which have been answered by a resolution already in flight
+    private final AtomicLong coalescedLookups = new AtomicLong(); 
+    
     
     /**********************************************************************************************
     *                                                                                            *
@@ -67,10 +128,14 @@ public class Node {
     */
     Node(String hostname, int port) {
         this.address = new InetSocketAddress(hostname, port);
-        this.key = NodeUtility.hashValue(address);
+        this.peer = new Peer(address); 
+        this.key = peer.key;
         
         initializeFingerTable();
-        moveKeys(100);
+        recoverKeys();
+        if (data.size() == 0) {
+            moveKeys(100);
+        }
         
         server = new Server(this); 
         new Thread(server).start();
@@ -81,19 +146,28 @@ public class Node {
     /**
     * Constructor to be used when this node joins a chord ring which is already in existence. 
     * Initializes predecessor and finger table with the help of helper node provided. 
+    * A node restarting with the routing state it has saved takes its fingers from there,
+    * and fetches only the keys written to its successor meanwhile.  With
+    * NodeUtility.LAZY_JOIN the keys are fetched after the node has started.
     * 
     * @param hostname
     *        Hostname of the current node
-    * @param port 
+    * @param port
     *        port number of the current node
     * @param helper
     *        InetSocketAddress of the node which will help in filling out the finger table
     */
     Node(String hostname, int port, InetSocketAddress helper) {
         this.address = new InetSocketAddress(hostname, port);
-        this.key = NodeUtility.hashValue(address);
+        this.peer = new Peer(address); 
+        this.key = peer.key;
         
-        initializeNeighbors(helper);
+        Peer helperPeer = new Peer(helper);
+        recoverKeys();
+        boolean restored = restoreNeighbors(helperPeer);
+        if (!restored) {
+            initializeNeighbors(helperPeer);
+        }
         
         /**
         * Starts the server just after initialization of neighbors and before the initialization
@@ -103,9 +177,16 @@ public class Node {
         server = new Server(this); 
         new Thread(server).start();
         
-        initializeFingerTable(helper);
-        updateOthers();
-        moveKeys(getSuccessor());
+        if (!restored) {
+            initializeFingerTable(helperPeer);
+            updateOthers();
+        }
+        // Text-only successor cannot serve a Fetch, so its keys are waited for
+        if (NodeUtility.LAZY_JOIN && !NodeUtility.isTextOnly(getSuccessor())) {
+            startHandover(getSuccessor());
+        } else {
+            moveKeys(getSuccessor());
+        }
         startThreads();
     }
     
@@ -117,16 +198,107 @@ public class Node {
     **********************************************************************************************/
     
     /**
-    * Starts all threads of a node. 
+    * Starts the maintenance tasks of a node.  Tasks run on the threads shared 
+    * by all the nodes of the process, see PeriodicTask. 
     */
     private void startThreads() {
         stabilize = new Stabilize(this); 
         fixFingers = new FixFingers(this); 
         nearestSuccessors = new NearestSuccessors(this); 
         
-        new Thread(stabilize).start();
-        new Thread(fixFingers).start();
-        new Thread(nearestSuccessors).start();
+        stabilize.start();
+        fixFingers.start();
+        nearestSuccessors.start();
+        
+        if (snapshot != null) {
+            snapshot.start();
+            routing.start();
+        }
+    }
+    
+    /**
+    * Loads the keys kept by this node before it was last stopped, if the
+    * keys are to survive a restart, i.e, NodeUtility.DATA_DIRECTORY is set.
+    * From now on every change to the keys is logged.
+    */
+    private void recoverKeys() {
+        if (NodeUtility.DATA_DIRECTORY == null) {
+            return;
+        }
+        
+        Path directory = Paths.get(NodeUtility.DATA_DIRECTORY, address.getHostString() + "-" + address.getPort());
+        try {
+            int generation = Snapshot.recover(directory, data);
+            WriteAheadLog log = new WriteAheadLog(directory, generation);
+            data.setLog(log);
+            snapshot = new Snapshot(directory, data, log);
+            routing = new RoutingState(this, directory);
+        } catch (IOException e) {
+            System.err.println("Keys could not be recovered from " + directory + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+    * Initializes the neighbors and the finger table of a restarting node
+    * from the routing state it saved before it was stopped.  Successor is
+    * looked up once, through the helper or, if it does not answer, through
+    * the successors and fingers saved, which are likely to be alive during
+    * a rolling restart.  Fingers saved are kept as they are, apart from
+    * those whose start lies before the successor, which become the
+    * successor.  The others are validated lazily, as FixFingers refreshes
+    * them one at a time and a lookup passes over a finger which does not
+    * answer.  Keys recovered outside (predecessor, node] are dropped.
+    * 
+    * @param  helper
+    *         Reference to the helper node
+    * @return true, if the node has been placed in the ring from its saved state
+    *         false, if there was no saved state, or none of the nodes in it answered
+    */
+    private boolean restoreNeighbors(Peer helper) {
+        if (routing == null || !routing.load()) {
+            return false;
+        }
+        
+        Set<Peer> helpers = new LinkedHashSet<>();
+        helpers.add(helper);
+        helpers.addAll(Arrays.asList(routing.successors));
+        helpers.addAll(Arrays.asList(routing.fingers));
+        helpers.remove(this.peer);
+        
+        Peer successor = null;
+        for (Peer candidate : helpers) {
+            successor = NodeUtility.requestPeer(candidate, new Message(Message.FIND_SUCCESSOR, this.key));
+            if (successor != null) {
+                break;
+            }
+        }
+        if (successor == null) {
+            return false;
+        }
+        
+        fingers = routing.fingers.clone();
+        fingers[0] = successor;
+        for (int i = 1; i < fingers.length; i++) {
+            long fingerStart = NodeUtility.addToKey(this.key, NodeUtility.getithStep(i));
+            
+            // Nothing lies between this node and its successor any longer
+            if (fingers[i].equals(this.peer) || NodeUtility.belongs(this.key, false, successor.key, true, fingerStart)) {
+                fingers[i] = successor;
+            }
+        }
+        
+        Peer predecessor = NodeUtility.requestPeer(successor, new Message(Message.YOUR_PREDECESSOR));
+        this.predecessor = predecessor == null || predecessor.equals(this.peer) ? routing.predecessor : predecessor;
+        
+        // Keys recovered which now belong to other nodes are dropped, their owners have the latest values
+        if (!this.predecessor.equals(this.peer)) {
+            data.removeRange(this.key, this.predecessor.key);
+            data.commit();
+        }
+        
+        // Notifies successor about its presence
+        NodeUtility.processRequest(successor, new Message(Message.NOTIFY, this.peer));
+        return true;
     }
     
     /**
@@ -134,20 +306,18 @@ public class Node {
     * node which is already there in the chord ring. 
     * 
     * @param helper
-    *        InetSocketAddress of the helper node
+    *        Reference to the helper node
     */
-    private void initializeNeighbors(InetSocketAddress helper) {
-        fingers = new InetSocketAddress[NodeUtility.NUMBER_OF_AVAILABLE_BITS];
+    private void initializeNeighbors(Peer helper) {
+        fingers = new Peer[NodeUtility.NUMBER_OF_AVAILABLE_BITS];
         
-        String response = NodeUtility.processRequest(helper, "FindSuccessor:" + this.key); 
-        InetSocketAddress successor = NodeUtility.parseInetSocketAddress(response);
+        Peer successor = NodeUtility.requestPeer(helper, new Message(Message.FIND_SUCCESSOR, this.key)); 
         Arrays.fill(fingers, successor);
         
-        response = NodeUtility.processRequest(fingers[0], "YourPredecessor"); 
-        this.predecessor = NodeUtility.parseInetSocketAddress(response);
+        this.predecessor = NodeUtility.requestPeer(fingers[0], new Message(Message.YOUR_PREDECESSOR)); 
         
         // Notifies successor about its presence
-        NodeUtility.processRequest(successor, "Notify:" + this.address.toString());
+        NodeUtility.processRequest(successor, new Message(Message.NOTIFY, this.peer));
     }
     
     /**
@@ -155,62 +325,69 @@ public class Node {
     * To be used when this is the first node to join the chord ring. 
     */
     private void initializeFingerTable() {
-        this.predecessor = this.address; 
-        fingers = new InetSocketAddress[NodeUtility.NUMBER_OF_AVAILABLE_BITS];
-        Arrays.fill(fingers, this.address);
+        this.predecessor = this.peer; 
+        fingers = new Peer[NodeUtility.NUMBER_OF_AVAILABLE_BITS];
+        Arrays.fill(fingers, this.peer);
     }
     
     /**
     * Initializes the finger table of this node with the help of node helper. 
     * To be used when this node joins a chord ring already in existence. 
     * 
+    * Fingers whose start lies between this node and its successor are the 
+    * successor itself.  The lookups for the rest do not depend on each other, 
+    * so they are sent together, NodeUtility.JOIN_FAN_OUT at a time, and the 
+    * table is complete once all of them have been answered. 
+    * 
     * @param helper fromIndex
-    *        InetSocketAddress of the helper node
+    *        Reference to the helper node
     */
-    private void initializeFingerTable(InetSocketAddress helper) {
+    private void initializeFingerTable(Peer helper) {
+        Peer successor = fingers[0]; 
+        List<Integer> lookups = new ArrayList<>(); 
         
         for (int i = 1; i < NodeUtility.NUMBER_OF_AVAILABLE_BITS; i++) {
-            InetSocketAddress lastFinger = fingers[i - 1]; 
-            int lastFingerKey = NodeUtility.hashValue(lastFinger); 
-            
-            int lastFingerStart = (this.key + NodeUtility.getithStep(i - 1)) % NodeUtility.KEYSPACE; 
-            int thisFingerStart = (this.key + NodeUtility.getithStep(i)) % NodeUtility.KEYSPACE;
+            long fingerStart = NodeUtility.addToKey(this.key, NodeUtility.getithStep(i)); 
             
             /**
             *                     Finger[i].start = this.key + pow(2, i - 1)
             * 
-            *            ithFinger belongs to [Finger[i].start, Finger[i + 1].start)
-            *      (i + 1)thFinger belongs to [Finger[i + 1].start, Finger[i + 2].start)
-            * 
-            * ithFinger of a node is essentially the successor of Finger[i].start. If there
-            * is no node in the range where ithFinger should have been(3rd line of comment),
-            * it looks for node beyond that. But that would also become the successor of 
-            * Finger[i + 1].start. 
-            * 
-            * It means, if ithFinger doesn't belong to the specified range, then ith and (i + 1)th 
-            * finger of node will have the same value. Thus, there is no need to run FindPredecessor
-            * for (i + 1)th finger. 
+            * ithFinger of a node is essentially the successor of Finger[i].start. If 
+            * Finger[i].start lies in (this.key, successor.key], that is the successor, 
+            * and there is no need to run FindPredecessor for it. 
             */
-            if (!NodeUtility.belongs(lastFingerStart, true, thisFingerStart, false, lastFingerKey)) {
-                fingers[i] = lastFinger; 
+            if (NodeUtility.belongs(this.key, false, successor.key, true, fingerStart)) {
+                fingers[i] = successor; 
             } else {
-                String response = NodeUtility.processRequest(helper, "FindSuccessor:" + thisFingerStart);
-                fingers[i] = NodeUtility.parseInetSocketAddress(response); 
+                lookups.add(i); 
             }
         }
+        
+        NodeUtility.forEachConcurrently(lookups.size(), NodeUtility.JOIN_FAN_OUT, index -> {
+            int i = lookups.get(index); 
+            long fingerStart = NodeUtility.addToKey(this.key, NodeUtility.getithStep(i)); 
+            Peer finger = NodeUtility.requestPeer(helper, new Message(Message.FIND_SUCCESSOR, fingerStart)); 
+            
+            // A finger left unanswered is corrected later by FixFingers
+            synchronized(this) {
+                fingers[i] = finger == null ? successor : finger; 
+            }
+        }, "InitializeFingers-" + address.getPort()); 
     }
     
     /**
     * Change the successor of this node. 
     * 
     * @param  potentialSuccessor
-    *         InetSocketAddress of the new successor of this node
+    *         Reference to the new successor of this node
     * @return Acknowledgement message
     */
-    public String changeSuccessor(InetSocketAddress potentialSuccessor) {
+    public String changeSuccessor(Peer potentialSuccessor) {
         synchronized(this) {
             fingers[0] = potentialSuccessor; 
         }
+        locationCache.invalidateRange(potentialSuccessor); 
+        tightenMaintenance(); 
         return "Done"; 
     }
     
@@ -218,13 +395,15 @@ public class Node {
     * Change the predecessor of this node. 
     * 
     * @param  potentialPredecessor
-    *         InetSocketAddress of the new predecessor of this node
+    *         Reference to the new predecessor of this node
     * @return Acknowledgement message
     */
-    public String changePredecessor(InetSocketAddress potentialPredecessor) {
+    public String changePredecessor(Peer potentialPredecessor) {
         synchronized(this) {
             this.predecessor = potentialPredecessor; 
         }
+        locationCache.invalidateRange(potentialPredecessor); 
+        tightenMaintenance(); 
         return "Done"; 
     }
     
@@ -233,23 +412,86 @@ public class Node {
     * If yes, make the possible changes. 
     * 
     * @param  potentialPredecessor
-    *         InetSocketAddress of the node which could be the new predecessor
+    *         Reference to the node which could be the new predecessor
     * @return Acknowledgement message
     */
-    public String notify(InetSocketAddress potentialPredecessor) {
+    public String notify(Peer potentialPredecessor) {
+        dropHandedOver(potentialPredecessor);
+        
         if (!isAlive(this.predecessor)) {
             return changePredecessor(potentialPredecessor);
         }
         
-        int predecessorKey = NodeUtility.hashValue(this.predecessor); 
-        int potentialPredecessorKey = NodeUtility.hashValue(potentialPredecessor); 
-        
-        if (NodeUtility.belongs(predecessorKey, false, this.key, false, potentialPredecessorKey)) {
+        if (NodeUtility.belongs(this.predecessor.key, false, this.key, false, potentialPredecessor.key)) {
             this.predecessor = potentialPredecessor; 
-        } 
+            locationCache.invalidateRange(potentialPredecessor); 
+            tightenMaintenance(); 
+        }
         return "Done"; 
     }
     
+    /**
+    * Drops the keys handed over to the given node through TransferKeys.  A
+    * node asks for its keys before it starts its Stabilize, so its notify
+    * tells that they have reached it.
+    * 
+    * @param node
+    *        Reference to the node which has notified this node
+    */
+    private void dropHandedOver(Peer node) {
+        Long secondPredecessorKey = handedOver.remove(node.key);
+        
+        if (secondPredecessorKey != null) {
+            synchronized(data) {
+                data.removeRange(secondPredecessorKey, node.key);
+            }
+            data.commit();
+        }
+    }
+    
+    /**
+    * Checks whether the given node could be the predecessor of this node, 
+    * as in notify, and tells it about the neighbors of this node, so that 
+    * a round of its Stabilize takes a single round trip. 
+    * 
+    * @param  potentialPredecessor
+    *         Reference to the node which could be the new predecessor
+    * @return NEIGHBORS response carrying the predecessor of this node and 
+    *         its nearest successors
+    */
+    public Message stabilizeExchange(Peer potentialPredecessor) {
+        notify(potentialPredecessor); 
+        return new Message(Message.NEIGHBORS, getPredecessor(), getSuccessorList()); 
+    }
+    
+    /**
+    * Finds the nearest successors of this node known so far, nearest first. 
+    * 
+    * @return References to the nearest successors
+    */
+    public Peer[] getSuccessorList() {
+        NearestSuccessors nearestSuccessors = this.nearestSuccessors; 
+        
+        if (nearestSuccessors == null) {
+            return new Peer[] {getSuccessor()}; 
+        }
+        return nearestSuccessors.getSuccessors(); 
+    }
+    
+    /**
+    * Brings the next rounds of the maintenance tasks forward, as this node 
+    * has learnt of a change in the ring by itself, see PeriodicTask. 
+    */
+    private void tightenMaintenance() {
+        PeriodicTask[] tasks = {stabilize, fixFingers, nearestSuccessors}; 
+        
+        for (PeriodicTask task : tasks) {
+            if (task != null) {
+                task.tighten(); 
+            }
+        }
+    }
+    
     /**
     * Checks whether the node with given address is alive or not. 
     * Used in cases where updation of the predecessor is required. 
@@ -257,9 +499,9 @@ public class Node {
     * @return true, if node with the given address is alive
     *         false, otherwise
     */
-    private boolean isAlive(InetSocketAddress address) {
-        String request = NodeUtility.processRequest(address, "Alive"); 
-        return !(request == null); 
+    private boolean isAlive(Peer node) {
+        Message response = NodeUtility.processRequest(node, new Message(Message.ALIVE)); 
+        return !(response == null); 
     }
     
     /**
@@ -268,18 +510,15 @@ public class Node {
     * @param  i
     *         index of the finger which is to be checked for update
     * @param  finger
-    *         InetSocketAddress of potential ith finger
+    *         Reference to potential ith finger
     * @return Acknowledgement message
     */
-    public String updateithFinger(int i, InetSocketAddress potentialFinger) {
-        int currentFingerKey = NodeUtility.hashValue(fingers[i]); 
-        int potentialFingerKey = NodeUtility.hashValue(potentialFinger); 
-        
-        if (NodeUtility.belongs(this.key, false, currentFingerKey, false, potentialFingerKey)) {
+    public String updateithFinger(int i, Peer potentialFinger) {
+        if (NodeUtility.belongs(this.key, false, fingers[i].key, false, potentialFinger.key)) {
             fingers[i] = potentialFinger; 
-            InetSocketAddress predecessor = this.predecessor; 
-            return NodeUtility.processRequest(predecessor, 
-            "UpdateithFinger:" + i + ":" + potentialFinger.toString()); 
+            locationCache.invalidateRange(potentialFinger); 
+            Peer predecessor = this.predecessor; 
+            NodeUtility.processRequest(predecessor, new Message(Message.UPDATE_ITH_FINGER, i, potentialFinger)); 
         }
         return "Done"; 
     }
@@ -287,29 +526,30 @@ public class Node {
     /**
     * Updates the finger table of all the nodes which should have this node 
     * present in their finger table after this node has joined the chord ring.
+    * Every finger index is independent of the others, so the walks to the 
+    * nodes to be updated run NodeUtility.JOIN_FAN_OUT at a time. 
     */
     public void updateOthers() {
-        for (int i = 0; i < NodeUtility.NUMBER_OF_AVAILABLE_BITS; i++) {
-            int requiredKey = this.key - NodeUtility.getithStep(i); 
-            requiredKey += requiredKey < 0 ? NodeUtility.KEYSPACE : 0; 
+        NodeUtility.forEachConcurrently(NodeUtility.NUMBER_OF_AVAILABLE_BITS, NodeUtility.JOIN_FAN_OUT, i -> {
+            long requiredKey = NodeUtility.addToKey(this.key, -NodeUtility.getithStep(i)); 
             
-            InetSocketAddress requiredAddressPredecessor = getPredecessor(requiredKey); 
-            InetSocketAddress requiredAddressSuccessor = null; 
+            Peer requiredAddressPredecessor = getPredecessor(requiredKey); 
+            Peer requiredAddressSuccessor = null; 
             
-            if (requiredAddressPredecessor.equals(this.address)) {
+            if (requiredAddressPredecessor.equals(this.peer)) {
                 requiredAddressSuccessor = getSuccessor(); 
             } else {
-                String response = NodeUtility.processRequest(requiredAddressPredecessor, "YourSuccessor"); 
-                requiredAddressSuccessor = NodeUtility.parseInetSocketAddress(response); 
+                requiredAddressSuccessor = NodeUtility.requestPeer(requiredAddressPredecessor, 
+                                                                   new Message(Message.YOUR_SUCCESSOR)); 
             }
             
-            InetSocketAddress requiredAddress = (NodeUtility.isValidForithFingerUpdate(i, this.address, requiredAddressSuccessor)) 
-                                                ? requiredAddressSuccessor 
-                                                : requiredAddressPredecessor; 
+            Peer requiredAddress = (NodeUtility.isValidForithFingerUpdate(i, this.peer, requiredAddressSuccessor)) 
+                                   ? requiredAddressSuccessor 
+                                   : requiredAddressPredecessor; 
             
-            NodeUtility.processRequest(requiredAddress, "UpdateithFinger:" + i + ":" + this.address); 
-        }
-    }   
+            NodeUtility.processRequest(requiredAddress, new Message(Message.UPDATE_ITH_FINGER, i, this.peer)); 
+        }, "UpdateOthers-" + address.getPort()); 
+    }
     
     /**
     * Generate 100 random files and transfer the responsiblity to this node. 
@@ -319,40 +559,227 @@ public class Node {
     *        Number of random files to be generated
     */
     private void moveKeys(int totalFiles) {
-        data = new HashMap<>();
         String[] files = NodeUtility.generateRandomFiles(totalFiles);
         
         for (String filename : files) {
-            int hashvalue = NodeUtility.hashValue(filename); 
-            data.put(filename, hashvalue); 
+            data.add(filename); 
         }
     }
     
     /**
     * Transfers keys from its successor for which this node is responsible now. 
-    * Successor returns a string consisting of filenames separated by ':'.
+    * Keys are pulled in chunks of at most NodeUtility.TRANSFER_CHUNK_SIZE, the
+    * next one being asked for only after the previous one has been stored, so
+    * a large handover never has to be held in memory at once, and the keys
+    * of a chunk are served as soon as it lands.
+    * 
+    * Every request carries the cursor, i.e, the position of the last key
+    * stored, which tells the successor to drop the keys up to it.  A chunk
+    * lost along the way is thus asked for once more from the same cursor.
+    * A text-only successor, which knows no chunks, is asked for all the keys
+    * at once through TransferKeys.
+    * A chunk which is not answered after NodeUtility.TRANSFER_RETRIES tries,
+    * finds no room here, or cannot be logged, is not acknowledged, and the
+    * handover stops, leaving the rest of the keys with the successor.  It is
+    * resumed from the cursor by a later round of Stabilize, see resumeHandover.
+    * 
+    * @param successor
+    *        Reference to the successor of this node
+    */
+    public void moveKeys(Peer successor) {
+        handoverLeft = predecessor.key;
+        handoverCursor = handoverLeft;
+        handoverSource = successor;
+        handingOver.set(true);
+        handOver();
+    }
+    
+    /**
+    * Transfers the keys in (secondPredecessorKey, key] after the cursor from
+    * the successor, as in moveKeys(successor).
+    * 
+    * @param  successor
+    *         Reference to the successor of this node
+    * @param  secondPredecessorKey
+    *         Key of the predecessor of this node
+    * @param  cursor
+    *         position of the last key stored, or secondPredecessorKey if
+    *         none has been stored yet
+    * @return true, if the handover is complete
+    *         false, if it has stopped, handoverCursor being the position
+    *         from where it is to be resumed
+    */
+    private boolean moveKeys(Peer successor, long secondPredecessorKey, long cursor) {
+        int failures = 0;
+        
+        while (!NodeUtility.isTextOnly(successor)) {
+            Message response = NodeUtility.processRequest(successor, new Message(Message.TRANSFER_CHUNK, this.key,
+                                                          secondPredecessorKey, cursor, NodeUtility.TRANSFER_CHUNK_SIZE));
+            
+            if (response != null && response.opcode == Message.KEYS_CHUNK) {
+                // Keys are acknowledged by the next request, so they are made durable first
+                if (!storeKeys(response)) {
+                    System.out.printf("No room for the keys handed over by %s, the rest are left with it.\n", 
+                                      successor.address); 
+                    return false;
+                } else if (!data.commit()) {
+                    System.out.printf("Keys handed over by %s could not be logged, the rest are left with it.\n", 
+                                      successor.address); 
+                    return false;
+                }
+                
+                if (response.done) {
+                    return true;
+                }
+                cursor = response.cursor;
+                handoverCursor = cursor;
+                failures = 0;
+            } else if (response == null && ++failures <= NodeUtility.TRANSFER_RETRIES) {
+                try {
+                    Thread.sleep(50L * failures);
+                } catch (InterruptedException exception) {
+                    exception.printStackTrace();
+                }
+            } else {
+                System.out.printf("Keys are not handed over by %s, the rest are left with it.\n", successor.address); 
+                return false;
+            }
+        }
+        
+        // Successor keeps the keys until this node notifies it, which Stabilize does once they are here
+        Message response = null;
+        for (int i = 0; i <= NodeUtility.TRANSFER_RETRIES && (response == null || response.keys == null); i++) {
+            response = NodeUtility.processRequest(successor, new Message(Message.TRANSFER_KEYS, this.key,
+                                                                         secondPredecessorKey));
+        }
+        
+        if (response == null || response.keys == null) {
+            System.out.printf("Keys are not handed over by %s, they are left with it.\n", successor.address); 
+            return false;
+        } else if (!storeKeys(response)) {
+            System.out.printf("No room for the keys handed over by %s, some of them are lost.\n", 
+                              successor.address); 
+        }
+        
+        if (!data.commit()) {
+            System.out.printf("Keys handed over by %s could not be logged.\n", successor.address); 
+        }
+        return true;
+    }
+    
+    /**
+    * Stores the keys handed over by the successor, along with their values
+    * if it has sent them.  A text-only successor sends the names alone.
+    * 
+    * @param  response
+    *         KEYS or KEYS_CHUNK response from the successor
+    * @return true, if all the keys are present here
+    *         false, if the store has run out of room for a key
+    */
+    private boolean storeKeys(Message response) {
+        for (int i = 0; i < response.keys.length; i++) {
+            synchronized(data) {
+                if (handoverRemoved.contains(response.keys[i])) {
+                    continue;
+                }
+                
+                boolean added = response.values == null 
+                                ? data.add(response.keys[i]) 
+                                : data.add(response.keys[i], response.values[i]); 
+                
+                // A key not added may just be present already
+                if (!added && !data.contains(response.keys[i])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+    * Takes over the keys of this node from the successor without waiting
+    * for them, when NodeUtility.LAZY_JOIN is set.  Keys are handed over in
+    * the background by moveKeys, while a key asked for before it has
+    * arrived is fetched from the successor on its own, see fetchHandedOver.
+    * Keys written here meanwhile are not overwritten by the handover, as
+    * it only adds keys which are absent.
     * 
     * @param successor
-    *        InetSocketAddress of the successor of this node
+    *        Reference to the successor of this node
+    */
+    private void startHandover(Peer successor) {
+        handoverLeft = predecessor.key;
+        handoverCursor = handoverLeft;
+        handoverSource = successor;
+        handingOver.set(true);
+        NodeUtility.newThread(this::handOver, "Handover-" + address.getPort()).start();
+    }
+    
+    /**
+    * Resumes a handover which has stopped, on a thread of its own, so that
+    * the round of Stabilize calling it is not held up.  Keys not handed over
+    * yet are fetched from the old owner meanwhile, see fetchHandedOver.
     */
-    public void moveKeys(InetSocketAddress successor) {
-        data = new HashMap<>(); 
-        String response = NodeUtility.processRequest(successor, "TransferKeys:" + this.key + 
-        ":" + NodeUtility.hashValue(predecessor)); 
+    public void resumeHandover() {
+        if (handoverSource != null && handingOver.compareAndSet(false, true)) {
+            NodeUtility.newThread(this::handOver, "Handover-" + address.getPort()).start();
+        }
+    }
+    
+    /**
+    * Hands over the keys from where the handover has reached, and ends the
+    * handover once all of them are here, or the old owner has failed along
+    * with the rest of them.
+    */
+    private void handOver() {
+        Peer source = handoverSource;
         
-        String[] files = response.split(":"); 
-        for (String filename : files) {
-            int hashvalue = NodeUtility.hashValue(filename); 
-            data.put(filename, hashvalue);
+        if (moveKeys(source, handoverLeft, handoverCursor) || !isAlive(source)) {
+            handoverSource = null;
+            handoverRemoved.clear();
+        }
+        handingOver.set(false);
+    }
+    
+    /**
+    * Fetches a key missing here from the node handing over the keys of
+    * this node, if it may not have arrived yet.  Request is a Fetch, which
+    * the old owner answers from its own keys, though it no longer owns them.
+    * 
+    * @param  name
+    *         name of the key
+    * @param  id
+    *         key of the name
+    * @return value of the key,
+    *         null, if the key is present at neither node
+    */
+    private byte[] fetchHandedOver(String name, long id) {
+        Peer source = handoverSource;
+        
+        if (source == null || !NodeUtility.belongs(handoverLeft, false, this.key, true, id)
+            || handoverRemoved.contains(name)) {
+            return null;
+        }
+        
+        Message response = NodeUtility.processRequest(source, new Message(Message.FETCH, name, null, 0));
+        if (response != null && response.opcode == Message.VALUE && response.value != null) {
+            synchronized(data) {
+                if (!handoverRemoved.contains(name)) {
+                    data.add(name, response.value);
+                }
+            }
         }
+        
+        // Key may have been stored by the handover meanwhile, and dropped by the old owner
+        return data.get(name);
     }
     
     /**
     * Finds the successor of this node.
     * 
-    * @return InetSocketAddress of the successor of this node
+    * @return Reference to the successor of this node
     */
-    public InetSocketAddress getSuccessor() {
+    public Peer getSuccessor() {
         return fingers[0]; 
     }
     
@@ -360,14 +787,156 @@ public class Node {
     * Finds the successor of id. 
     * Successor of id is defined as the first node in the chord ring 
     * whose key is greater than or equal to id. 
+    * Lookup is made in the mode given by NodeUtility.LOOKUP_MODE. 
     * 
     * @param  id
     *         key whose successor is sought
-    * @return InetSocketAddress of the successor of id
+    * @return Reference to the successor of id
+    */
+    public Peer getSuccessor(long id) {
+        return getSuccessor(id, NodeUtility.LOOKUP_MODE); 
+    }
+    
+    /**
+    * Finds the owner of id, i.e, its successor, for a client of the ring. 
+    * If the owner of id is cached, it is asked for its predecessor to 
+    * confirm that it still owns id, which makes it a single hop.  An owner 
+    * which fails or no longer owns id is dropped from the cache, and id is 
+    * looked up as usual.  Maintenance of the ring, e.g, fixing fingers, does 
+    * not go through the cache, so that it always sees the present ring. 
+    * 
+    * @param  id
+    *         key whose owner is sought
+    * @return Reference to the owner of id
     */
-    public InetSocketAddress getSuccessor(int id) {
-        InetSocketAddress predecessor = getPredecessor(id);
-        String response = NodeUtility.processRequest(predecessor, "YourSuccessor"); 
+    public Peer lookup(long id) {
+        Peer owner = locationCache.get(id); 
+        
+        if (owner != null) {
+            Peer predecessor = owner.equals(this.peer) 
+                               ? this.predecessor 
+                               : NodeUtility.requestPeer(owner, new Message(Message.YOUR_PREDECESSOR)); 
+            
+            if (predecessor != null && NodeUtility.belongs(predecessor.key, false, owner.key, true, id)) {
+                locationCache.confirm(owner, predecessor); 
+                return owner; 
+            }
+            locationCache.invalidate(owner); 
+        }
+        
+        owner = getSuccessor(id); 
+        locationCache.put(id, owner); 
+        return owner; 
+    }
+    
+    /**
+    * Finds the successor of id, looking it up in the given mode. 
+    * 
+    * @param  id
+    *         key whose successor is sought
+    * @param  mode
+    *         whether the lookup is recursive or iterative
+    * @return Reference to the successor of id
+    */
+    public Peer getSuccessor(long id, LookupMode mode) {
+        return resolveOnce(successorsInFlight, id, 
+                           mode == LookupMode.ITERATIVE ? this::findSuccessorIteratively : this::findSuccessorRecursively); 
+    }
+    
+    /**
+    * Resolves a lookup unless the same lookup is already in flight, in which 
+    * case its result is awaited and shared.  A follower which has waited for 
+    * NodeUtility.LOOKUP_TIMEOUT, e.g, because the lookup it waits on has come 
+    * back to this node through stale fingers, resolves the lookup itself. 
+    * 
+    * @param  inFlight
+    *         lookups of the same kind being resolved, by the key looked up
+    * @param  id
+    *         key looked up
+    * @param  resolver
+    *         resolves the lookup, if it is not in flight
+    * @return result of the lookup
+    */
+    private Peer resolveOnce(ConcurrentMap<Long, CompletableFuture<Peer>> inFlight, long id, 
+                             LongFunction<Peer> resolver) {
+        if (!NodeUtility.SINGLE_FLIGHT) {
+            return resolver.apply(id); 
+        }
+        
+        CompletableFuture<Peer> resolution = new CompletableFuture<>(); 
+        CompletableFuture<Peer> leader = inFlight.putIfAbsent(id, resolution); 
+        
+        if (leader != null) {
+            try {
+                Peer result = leader.get(NodeUtility.LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS); 
+                coalescedLookups.incrementAndGet(); 
+                return result; 
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); 
+            } catch (ExecutionException | TimeoutException e) {
+                // Resolution in flight has failed or is stuck, lookup is resolved afresh
+            }
+            return resolver.apply(id); 
+        }
+        
+        try {
+            Peer result = resolver.apply(id); 
+            resolution.complete(result); 
+            return result; 
+        } catch (RuntimeException e) {
+            resolution.completeExceptionally(e); 
+            throw e; 
+        } finally {
+            inFlight.remove(id, resolution); 
+        }
+    }
+    
+    /**
+    * Gives the resolution in flight of a lookup received by the server, 
+    * so that the server attaches the request to it rather than occupying 
+    * a worker with the same lookup. 
+    * 
+    * @param  request
+    *         FindSuccessor or FindPredecessor request
+    * @return resolution in flight of the lookup asked for, 
+    *         null, if there is none
+    */
+    public CompletableFuture<Peer> getLookupInFlight(Message request) {
+        CompletableFuture<Peer> resolution = null; 
+        
+        if (request.opcode == Message.FIND_SUCCESSOR) {
+            resolution = successorsInFlight.get(request.id); 
+        } else if (request.opcode == Message.FIND_PREDECESSOR) {
+            resolution = predecessorsInFlight.get(request.id); 
+        }
+        
+        if (resolution != null) {
+            coalescedLookups.incrementAndGet(); 
+        }
+        return resolution; 
+    }
+    
+    /**
+    * Finds the number of lookups which have been answered by a resolution 
+    * of the same lookup already in flight. 
+    * 
+    * @return number of coalesced lookups
+    */
+    public long getCoalescedLookups() {
+        return coalescedLookups.get(); 
+    }
+    
+    /**
+    * Finds the successor of id by asking for the predecessor of id, which 
+    * is found by the closest preceding finger asking its own, and so on. 
+    * 
+    * @param  id
+    *         key whose successor is sought
+    * @return Reference to the successor of id
+    */
+    private Peer findSuccessorRecursively(long id) {
+        Peer predecessor = getPredecessor(id);
+        Peer response = NodeUtility.requestPeer(predecessor, new Message(Message.YOUR_SUCCESSOR)); 
         
         while (response == null) {
             try {
@@ -377,17 +946,254 @@ public class Node {
             }
             
             predecessor = getPredecessor(id); 
-            response = NodeUtility.processRequest(predecessor, "YourSuccessor"); 
+            response = NodeUtility.requestPeer(predecessor, new Message(Message.YOUR_SUCCESSOR)); 
+        }
+        return response; 
+    }
+    
+    /**
+    * Finds the successor of id by walking towards it from this node.  Every 
+    * hop is asked for its closest preceding fingers, and the closest one 
+    * becomes the next hop.  Fingers offered by the earlier hops are kept 
+    * aside, so that a hop which fails or does not answer in time is 
+    * replaced by the next closest finger known.  If no hop is left, e.g, 
+    * when the ring is made of text-only nodes, lookup is made recursively. 
+    * 
+    * @param  id
+    *         key whose successor is sought
+    * @return Reference to the successor of id
+    */
+    private Peer findSuccessorIteratively(long id) {
+        Deque<Peer> hops = new ArrayDeque<>(); 
+        Message response = nextHop(id); 
+        
+        for (int i = 0; i < 4 * NodeUtility.NUMBER_OF_AVAILABLE_BITS; i++) {
+            if (response != null && response.opcode == Message.ADDRESS) {
+                return response.peer; 
+            } else if (response != null && response.opcode == Message.PEERS) {
+                for (int j = response.peers.length - 1; j >= 0; j--) {
+                    hops.push(response.peers[j]); 
+                }
+            }
+            
+            Peer hop = hops.poll(); 
+            if (hop == null) {
+                break; 
+            }
+            
+            response = hop.equals(this.peer) 
+                       ? nextHop(id) 
+                       : NodeUtility.processRequest(hop, new Message(Message.NEXT_HOP, id), NodeUtility.HOP_TIMEOUT); 
+        }
+        return findSuccessorRecursively(id); 
+    }
+    
+    /**
+    * Finds the successors of many keys at once.  Keys which lie between 
+    * this node and its successor are answered right away.  The rest are 
+    * partitioned by their closest preceding finger, and every partition is 
+    * sent to its finger as a single FindSuccessors request, which the finger 
+    * partitions in turn.  All the partitions are sent together, and their 
+    * answers are merged in the order of ids.  A partition whose finger fails, 
+    * or does not speak the binary format, is looked up key by key. 
+    * 
+    * @param  ids
+    *         keys whose successors are sought
+    * @return References to the successors, successors[i] being that of ids[i]
+    */
+    public Peer[] getSuccessors(long[] ids) {
+        Peer[] successors = new Peer[ids.length]; 
+        Peer[] fingers = this.fingers.clone(); 
+        Peer successor = fingers[0]; 
+        
+        // Partition of every key, i.e, index of its closest preceding finger, -1 if answered here
+        int[] partitions = new int[ids.length]; 
+        int[] partitionSizes = new int[fingers.length]; 
+        
+        for (int i = 0; i < ids.length; i++) {
+            partitions[i] = -1; 
+            
+            if (NodeUtility.belongs(this.key, false, successor.key, true, ids[i])) {
+                successors[i] = successor; 
+                continue; 
+            }
+            
+            for (int j = fingers.length - 1; j >= 0; j--) {
+                if (NodeUtility.belongs(this.key, false, ids[i], false, fingers[j].key)) {
+                    partitions[i] = j; 
+                    partitionSizes[j]++; 
+                    break;
+                }
+            }
+        }
+        
+        // Sends every partition to its finger
+        long[][] partitionIds = new long[fingers.length][]; 
+        List<CompletableFuture<Message>> responses = new ArrayList<>(); 
+        
+        for (int j = 0; j < fingers.length; j++) {
+            partitionIds[j] = new long[partitionSizes[j]]; 
+            partitionSizes[j] = 0; 
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (partitions[i] >= 0) {
+                partitionIds[partitions[i]][partitionSizes[partitions[i]]++] = ids[i]; 
+            }
+        }
+        for (int j = 0; j < fingers.length; j++) {
+            responses.add(partitionIds[j].length == 0 || fingers[j].equals(this.peer) 
+                          ? null 
+                          : NodeUtility.processRequestAsync(fingers[j], 
+                                                            new Message(Message.FIND_SUCCESSORS, partitionIds[j]), 
+                                                            NodeUtility.LOOKUP_TIMEOUT)); 
+        }
+        
+        // Merges the answers in the order of ids
+        Peer[][] partitionSuccessors = new Peer[fingers.length][]; 
+        
+        for (int j = 0; j < fingers.length; j++) {
+            if (partitionIds[j].length == 0) {
+                continue; 
+            }
+            
+            Message response = null; 
+            try {
+                response = responses.get(j) == null ? null : responses.get(j).join(); 
+            } catch (CompletionException exception) {
+                response = null; 
+            }
+            
+            if (response != null && response.opcode == Message.PEERS 
+                && response.peers.length == partitionIds[j].length) {
+                partitionSuccessors[j] = response.peers; 
+            } else {
+                partitionSuccessors[j] = new Peer[partitionIds[j].length]; 
+                for (int k = 0; k < partitionIds[j].length; k++) {
+                    partitionSuccessors[j][k] = getSuccessor(partitionIds[j][k]); 
+                }
+            }
+            partitionSizes[j] = 0; 
+        }
+        
+        for (int i = 0; i < ids.length; i++) {
+            int j = partitions[i]; 
+            
+            if (j >= 0) {
+                successors[i] = partitionSuccessors[j][partitionSizes[j]++]; 
+            } else if (successors[i] == null) {
+                successors[i] = getSuccessor(ids[i]); 
+            }
         }
-        return NodeUtility.parseInetSocketAddress(response); 
+        return successors; 
+    }
+    
+    /**
+    * Finds the successor of id without blocking the calling thread, giving 
+    * up after NodeUtility.LOOKUP_TIMEOUT milliseconds. 
+    * 
+    * @param  id
+    *         key whose successor is sought
+    * @return future completed with the reference to the successor of id
+    * @see    #lookupAsync(long, long)
+    */
+    public CompletableFuture<Peer> lookupAsync(long id) {
+        return lookupAsync(id, NodeUtility.LOOKUP_TIMEOUT); 
+    }
+    
+    /**
+    * Finds the successor of id without blocking the calling thread.  Lookup 
+    * walks towards id iteratively, the next hop being asked only once the 
+    * previous one has answered, so no thread waits on a remote node.  A hop 
+    * which fails is replaced by the next closest finger known, and once no 
+    * hop is left the walk starts afresh after a short pause, until the 
+    * deadline passes.  Lookup stops as soon as the future is completed, so 
+    * cancelling the future cancels the lookup. 
+    * 
+    * @param  id
+    *         key whose successor is sought
+    * @param  timeout
+    *         time in milliseconds after which the future fails with TimeoutException
+    * @return future completed with the reference to the successor of id
+    */
+    public CompletableFuture<Peer> lookupAsync(long id, long timeout) {
+        CompletableFuture<Peer> result = new CompletableFuture<>(); 
+        result.orTimeout(timeout, TimeUnit.MILLISECONDS); 
+        
+        walk(id, nextHop(id), new ArrayDeque<>(), result); 
+        return result; 
+    }
+    
+    /**
+    * Takes one step of an asynchronous lookup, given the answer of the last hop. 
+    * 
+    * @param id
+    *        key whose successor is sought
+    * @param response
+    *        answer of the last hop, null if it has failed
+    * @param hops
+    *        fingers offered so far which are yet to be asked, closest first
+    * @param result
+    *        future to be completed with the successor of id
+    */
+    private void walk(long id, Message response, Deque<Peer> hops, CompletableFuture<Peer> result) {
+        if (result.isDone()) {
+            return; 
+        } else if (response != null && response.opcode == Message.ADDRESS) {
+            result.complete(response.peer); 
+            return; 
+        } else if (response != null && response.opcode == Message.PEERS) {
+            for (int j = response.peers.length - 1; j >= 0; j--) {
+                hops.push(response.peers[j]); 
+            }
+        }
+        
+        Peer hop = hops.poll(); 
+        if (hop == null) {
+            Executor retry = CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS); 
+            retry.execute(() -> walk(id, nextHop(id), new ArrayDeque<>(), result)); 
+        } else if (hop.equals(this.peer)) {
+            walk(id, nextHop(id), hops, result); 
+        } else {
+            NodeUtility.processRequestAsync(hop, new Message(Message.NEXT_HOP, id), NodeUtility.HOP_TIMEOUT)
+                       .whenComplete((answer, exception) -> walk(id, answer, hops, result)); 
+        }
+    }
+    
+    /**
+    * Answers a hop of an iterative lookup from the state of this node alone. 
+    * 
+    * @param  id
+    *         key whose successor is sought
+    * @return ADDRESS carrying the successor of id, if it is the successor of this node, 
+    *         PEERS carrying the closest preceding fingers of id, closest first, otherwise
+    */
+    public Message nextHop(long id) {
+        Peer successor = getSuccessor(); 
+        
+        if (NodeUtility.belongs(this.key, false, successor.key, true, id)) {
+            return new Message(Message.ADDRESS, successor); 
+        }
+        
+        Peer[] hops = new Peer[NodeUtility.NUMBER_OF_NEXT_HOPS]; 
+        int count = 0; 
+        
+        for (int i = fingers.length - 1; i >= 0 && count < hops.length; i--) {
+            Peer finger = fingers[i]; 
+            
+            if (NodeUtility.belongs(this.key, false, id, false, finger.key) 
+                && (count == 0 || !hops[count - 1].equals(finger))) {
+                hops[count++] = finger; 
+            }
+        }
+        return new Message(Message.PEERS, Arrays.copyOf(hops, count)); 
     }
     
     /**
     * Finds the predecessor of this node. 
     * 
-    * @return InetSocketAddress of the predecessor of this node
+    * @return Reference to the predecessor of this node
     */
-    public InetSocketAddress getPredecessor() {
+    public Peer getPredecessor() {
         return this.predecessor; 
     }
     
@@ -395,21 +1201,31 @@ public class Node {
     * Finds the node that will precede id.
     * Predecessor of id is defined as the first node in the chord ring 
     * whose key is less than id. 
-    *
+    * 
     * @param  id
     *         key for which the predecessor is sought
-    * @return InetSocketAddress of the predecessor of id.
+    * @return Reference to the predecessor of id.
     */
-    public InetSocketAddress getPredecessor(int id) {
-        InetSocketAddress successor = getSuccessor(); 
-        int successorKey = NodeUtility.hashValue(successor); 
+    public Peer getPredecessor(long id) {
+        Peer successor = getSuccessor(); 
         
-        if (NodeUtility.belongs(this.key, false, successorKey, true, id)) {
-            return this.address; 
+        if (NodeUtility.belongs(this.key, false, successor.key, true, id)) {
+            return this.peer; 
         }
-        
-        InetSocketAddress closestPredecessor = getClosestPrecedingFinger(id);
-        String response = NodeUtility.processRequest(closestPredecessor, "FindPredecessor:" + id); 
+        return resolveOnce(predecessorsInFlight, id, this::findPredecessorRemotely); 
+    }
+    
+    /**
+    * Finds the predecessor of id by asking the closest preceding finger, 
+    * and the finger preceding that one if it fails. 
+    * 
+    * @param  id
+    *         key for which the predecessor is sought
+    * @return Reference to the predecessor of id.
+    */
+    private Peer findPredecessorRemotely(long id) {
+        Peer closestPredecessor = getClosestPrecedingFinger(id);
+        Peer response = NodeUtility.requestPeer(closestPredecessor, new Message(Message.FIND_PREDECESSOR, id)); 
         
         while (response == null) {
             try {
@@ -418,37 +1234,41 @@ public class Node {
                 exception.printStackTrace();
             }
             
-            int closestPredecessorKey = NodeUtility.hashValue(closestPredecessor); 
-            closestPredecessor = getClosestPrecedingFinger(closestPredecessorKey); 
-            response = NodeUtility.processRequest(closestPredecessor, "FindPredecessor:" + id); 
+            closestPredecessor = getClosestPrecedingFinger(closestPredecessor.key); 
+            response = NodeUtility.requestPeer(closestPredecessor, new Message(Message.FIND_PREDECESSOR, id)); 
         }
-        return NodeUtility.parseInetSocketAddress(response); 
+        return response; 
     }
     
     /**
     * Finds the farthest node in the finger table whose key precedes id. 
+    * Keys of the fingers are kept along with their addresses, so the 
+    * scan does not hash anything. 
     * 
     * @param  id
     *         key whose preceding node is sought
-    * @return InetSocketAddress of the closest preceding finger
+    * @return Reference to the closest preceding finger
     */
-    public InetSocketAddress getClosestPrecedingFinger(int id) {
+    public Peer getClosestPrecedingFinger(long id) {
         
         for (int i = fingers.length - 1; i >= 0; i--) {
-            InetSocketAddress fingerAddress = fingers[i]; 
-            int fingerKey = NodeUtility.hashValue(fingerAddress);
+            Peer finger = fingers[i]; 
             
-            if (NodeUtility.belongs(this.key, false, id, false, fingerKey)) {
-                return fingerAddress; 
+            if (NodeUtility.belongs(this.key, false, id, false, finger.key)) {
+                return finger; 
             }
         }
-        return this.address; 
+        return this.peer; 
     }
     
     /**
     * Transfers those filenames it contains which are supposed to be 
     * the responsibility of the new node with address predecessor. 
-    * String format to be returned is filenames separated by colon. 
+    * Filenames are sent back along with their values as a single chunk.
+    * As the keys are stored in the order of the ring, only the filenames 
+    * transferred are looked at.  Keys are kept here until the new node
+    * notifies this node, as the response may be lost on the way, see
+    * dropHandedOver.
     
     *              Npre ---> Nnew ---> Nsuc
     * 
@@ -463,29 +1283,243 @@ public class Node {
     *         Key of the node which has asked to transfer files
     * @param  secondPredecessorKey
     *         Key of the predecessor of the immediate predecessor of this node
-    * @return String representation of all filenames which are to be transferred
+    * @return KEYS_CHUNK response carrying all filenames which are to be
+    *         transferred along with their values
+    */
+    public Message transferKeys(long firstPredecessorKey, long secondPredecessorKey) {
+        List<String> names = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        
+        synchronized(data) {
+            data.collectRange(secondPredecessorKey, firstPredecessorKey, Integer.MAX_VALUE, names, values);
+        }
+        handedOver.put(firstPredecessorKey, secondPredecessorKey);
+        return new Message(Message.KEYS_CHUNK, names.toArray(new String[0]), values.toArray(new byte[0][]),
+                           firstPredecessorKey, true);
+    }
+    
+    /**
+    * Hands over the next chunk of the keys which are the responsibility of
+    * the new node with key firstPredecessorKey, as in transferKeys.  Keys up
+    * to the cursor have been stored by the new node, so they are dropped,
+    * and the chunk is made of the keys after the cursor.  Keys of the chunk
+    * are kept until the next request acknowledges them, so that a chunk lost
+    * along the way may be asked for once more.
+    * 
+    * @param  firstPredecessorKey
+    *         Key of the node which has asked to transfer files
+    * @param  secondPredecessorKey
+    *         Key of the predecessor of the immediate predecessor of this node
+    * @param  cursor
+    *         position of the last key stored by the new node, or
+    *         secondPredecessorKey if none has been stored yet
+    * @param  chunkSize
+    *         maximum number of keys in the chunk
+    * @return KEYS_CHUNK response carrying the chunk and its cursor, done once
+    *         no key is left to be handed over
     */
-    public String transferKeys(int firstPredecessorKey, int secondPredecessorKey) {
-        StringBuilder result = new StringBuilder(); 
-        Iterator<String> iterator = data.keySet().iterator();
+    public Message transferChunk(long firstPredecessorKey, long secondPredecessorKey, long cursor, int chunkSize) {
+        List<String> names = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
         
-        while (iterator.hasNext()) {
-            String filename = iterator.next(); 
-            int key = data.get(filename); 
+        synchronized(data) {
+            if (cursor != secondPredecessorKey) {
+                data.removeRange(secondPredecessorKey, cursor);
+            }
             
-            if (NodeUtility.belongs(secondPredecessorKey, false, firstPredecessorKey, true, key)) {
-                result.append(filename + ":"); 
-                iterator.remove(); 
+            if (cursor != firstPredecessorKey) {
+                cursor = data.collectRange(cursor, firstPredecessorKey, Math.max(chunkSize, 1), names, values);
             }
         }
+        return new Message(Message.KEYS_CHUNK, names.toArray(new String[0]), values.toArray(new byte[0][]),
+                           cursor, names.isEmpty());
+    }
+    
+    /**
+    * Stores the value of a key at the node responsible for it.
+    * 
+    * @param  name
+    *         name of the key
+    * @param  value
+    *         value of the key
+    * @return true, if the value has been stored durably, if so configured
+    *         false, if the responsible node could not be reached, has no room
+    *         or could not log it
+    */
+    public boolean put(String name, byte[] value) {
+        return put(name, value, NodeUtility.NUMBER_OF_FORWARDS);
+    }
+    
+    /**
+    * Stores the value of a key here if this node is responsible for it, or
+    * forwards it to the successor of the key otherwise.
+    * 
+    * @param  name
+    *         name of the key
+    * @param  value
+    *         value of the key
+    * @param  forwards
+    *         number of times the request may still be forwarded
+    * @return true, if the value has been stored durably, if so configured
+    *         false, if the name is too long, or the responsible node could not
+    *         be reached, has no room or could not log it
+    */
+    public boolean put(String name, byte[] value, int forwards) {
+        // A name which could not be sent to other nodes is not stored at all
+        if (name.getBytes(StandardCharsets.UTF_8).length > Protocol.MAX_NAME_LENGTH) {
+            return false;
+        }
         
-        if (result.length() == 0) {
-            return ""; 
+        Peer owner = ownerOf(NodeUtility.hashValue(name), forwards);
+        
+        if (owner == null) {
+            return false;
+        } else if (owner.equals(this.peer)) {
+            return data.put(name, value) && data.commit();
         }
+        Message response = forward(owner, new Message(Message.PUT, name, value, forwards - 1));
+        return response != null && response.opcode == Message.DONE;
+    }
+    
+    /**
+    * Finds the value of a key from the node responsible for it.
+    * 
+    * @param  name
+    *         name of the key
+    * @return value of the key,
+    *         null, if the key is not present or the responsible node could not be reached
+    */
+    public byte[] get(String name) {
+        return get(name, NodeUtility.NUMBER_OF_FORWARDS);
+    }
+    
+    /**
+    * Finds the value of a key here if this node is responsible for it, or
+    * asks the successor of the key otherwise.
+    * 
+    * @param  name
+    *         name of the key
+    * @param  forwards
+    *         number of times the request may still be forwarded
+    * @return value of the key,
+    *         null, if the key is not present or the responsible node could not be reached
+    */
+    public byte[] get(String name, int forwards) {
+        long id = NodeUtility.hashValue(name);
+        Peer owner = ownerOf(id, forwards);
         
-        // Deletes the last : used in this stringbuilder
-        result = result.deleteCharAt(result.length()- 1); 
-        return result.toString(); 
+        if (owner == null) {
+            return null;
+        } else if (owner.equals(this.peer)) {
+            byte[] value = data.get(name);
+            return value == null ? fetchHandedOver(name, id) : value;
+        }
+        Message response = forward(owner, new Message(Message.GET, name, null, forwards - 1));
+        return response == null || response.opcode != Message.VALUE ? null : response.value;
+    }
+    
+    /**
+    * Finds the value of a key among the keys held here, whether or not
+    * this node is responsible for it, for a node taking them over. 
+    * 
+    * @param  name
+    *         name of the key
+    * @return value of the key,
+    *         null, if the key is not held here
+    */
+    public byte[] fetch(String name) {
+        return data.get(name);
+    }
+    
+    /**
+    * Removes a key along with its value from the node responsible for it.
+    * 
+    * @param  name
+    *         name of the key
+    * @return true, if the key is no longer present
+    *         false, if the responsible node could not be reached
+    */
+    public boolean delete(String name) {
+        return delete(name, NodeUtility.NUMBER_OF_FORWARDS);
+    }
+    
+    /**
+    * Removes a key here if this node is responsible for it, or asks the
+    * successor of the key to remove it otherwise.
+    * 
+    * @param  name
+    *         name of the key
+    * @param  forwards
+    *         number of times the request may still be forwarded
+    * @return true, if the key is no longer present
+    *         false, if the responsible node could not be reached or could not log it
+    */
+    public boolean delete(String name, int forwards) {
+        Peer owner = ownerOf(NodeUtility.hashValue(name), forwards);
+        
+        if (owner == null) {
+            return false;
+        } else if (owner.equals(this.peer)) {
+            synchronized(data) {
+                if (handoverSource != null) {
+                    handoverRemoved.add(name);
+                }
+                data.remove(name);
+            }
+            return data.commit();
+        }
+        Message response = forward(owner, new Message(Message.DELETE, name, null, forwards - 1));
+        return response != null && response.opcode == Message.DONE;
+    }
+    
+    /**
+    * Checks whether this node is responsible for the given key, i.e, the 
+    * key lies between its predecessor and itself. 
+    * 
+    * @param  id
+    *         key to be checked
+    * @return true, if the key belongs to this node
+    *         false, otherwise
+    */
+    public boolean owns(long id) {
+        return NodeUtility.belongs(predecessor.key, false, this.key, true, id);
+    }
+    
+    /**
+    * Finds the node to which a request for the given key is to be sent.
+    * Owner is looked up through the location cache, see lookup, so that a
+    * cached owner is confirmed before the request is sent to it.  A request
+    * which has run out of forwards is served only if this node owns the key.
+    * 
+    * @param  id
+    *         key of the request
+    * @param  forwards
+    *         number of times the request may still be forwarded
+    * @return Reference to this node, if the request is to be served here
+    *         null, if the request has run out of forwards at another node
+    *         Reference to the owner of the key, otherwise
+    */
+    private Peer ownerOf(long id, int forwards) {
+        if (owns(id)) {
+            return this.peer;
+        } else if (forwards <= 0) {
+            return null;
+        }
+        return lookup(id);
+    }
+    
+    /**
+    * Sends a storage request to the owner of its key.  An owner which fails
+    * to answer is dropped from the location cache.
+    */
+    private Message forward(Peer owner, Message request) {
+        Message response = NodeUtility.processRequest(owner, request);
+        
+        if (response == null) {
+            locationCache.invalidate(owner);
+            tightenMaintenance();
+        }
+        return response;
     }
     
     /**
@@ -496,6 +1530,11 @@ public class Node {
         stabilize.stop();
         fixFingers.stop();
         nearestSuccessors.stop();
+        
+        if (snapshot != null) {
+            snapshot.stop();
+            routing.stop();
+        }
     }
     
     /**
@@ -511,27 +1550,21 @@ public class Node {
     * of this node. 
     */
     public void printNeighbors() {
-        InetSocketAddress successor = getSuccessor(); 
+        Peer successor = getSuccessor(); 
         System.out.printf("\nSuccessor Information:\nID: %d\nHostname: %s\nPort: %d\n\n", 
-        NodeUtility.hashValue(successor), successor.getHostName(), successor.getPort()); 
+        successor.key, successor.address.getHostName(), successor.address.getPort()); 
         
-        InetSocketAddress predecessor = getPredecessor(); 
+        Peer predecessor = getPredecessor(); 
         System.out.printf("\nPredecessor Information:\nID: %d\nHostname: %s\nPort: %d\n\n", 
-        NodeUtility.hashValue(predecessor), predecessor.getHostName(), predecessor.getPort()); 
+        predecessor.key, predecessor.address.getHostName(), predecessor.address.getPort()); 
     }
     
     /**
     * Prints the name of files contained by this node along with their keys. 
     */
     public void printContents() {
-        Iterator<String> iterator = data.keySet().iterator(); 
-        
         System.out.printf("\n%-16s%s\n\n", "Filename", "Key"); 
-        while (iterator.hasNext()) {
-            String filename = iterator.next(); 
-            int key = NodeUtility.hashValue(filename); 
-            System.out.printf("%-16s%d\n", filename, key); 
-        }
+        data.forEach((filename, key) -> System.out.printf("%-16s%d\n", filename, key)); 
         System.out.println(); 
     }
     
@@ -543,11 +1576,11 @@ public class Node {
         System.out.printf("%-8s%-10s%-14s%-8s%s\n\n", "S.NO.", "Start", "Hostname", "Key", "Port"); 
         
         for (int i = 0; i < NodeUtility.NUMBER_OF_AVAILABLE_BITS; i++) {
-            int start = (this.key + NodeUtility.getithStep(i)) % NodeUtility.KEYSPACE; 
-            InetSocketAddress finger = fingers[i]; 
-            String hostname = finger.getHostName(); 
-            int port = finger.getPort();
-            int key = NodeUtility.hashValue(finger);
+            long start = NodeUtility.addToKey(this.key, NodeUtility.getithStep(i)); 
+            Peer finger = fingers[i]; 
+            String hostname = finger.address.getHostName(); 
+            int port = finger.address.getPort();
+            long key = finger.key;
             System.out.printf("%-8d%-10d%-14s%-8d%d\n", i + 1, start, hostname, key, port); 
         }
         System.out.println(); 
@@ -583,7 +1616,7 @@ public class Node {
         Scanner in = new Scanner(System.in); 
         while (true) {
             System.out.printf("\n1: Print Address\n2: Print Neighbors\n3: Print Contents\n4: Print Successors\n" + 
-            "5: Print Finger Table\n6: Search file\n7: Exit\n"); 
+            "5: Print Finger Table\n6: Search file\n7: Print Cache Statistics\n8: Exit\n"); 
             System.out.printf("\nEnter choice: "); 
             int choice = in.nextInt(); 
             
@@ -606,21 +1639,24 @@ public class Node {
                 
                 case 5: 
                     node.printFingerTable();
-                    break; 
+                    break;
                 
                 case 6:
                     System.out.printf("Enter key to be searched: "); 
-                    int fileID = in.nextInt(); 
-                    InetSocketAddress successor = node.getSuccessor(fileID); 
-                    int successorKey = NodeUtility.hashValue(successor); 
-                    System.out.printf("ID of the successor node is : %d\n\n", successorKey); 
+                    long fileID = in.nextLong(); 
+                    Peer successor = node.lookup(fileID); 
+                    System.out.printf("ID of the successor node is : %d\n\n", successor.key); 
                     break;
                 
                 case 7:
+                    node.locationCache.printStatistics(); 
+                    break;
+                
+                case 8:
                     node.stop();
                     break;
             }
-            if (choice == 7) break;
+            if (choice == 8) break;
         }
         in.close();
     }
@@ -1,15 +1,23 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileReader;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter; 
+import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
 * This is a final class which implements some utility methods
@@ -23,57 +31,259 @@ import java.util.Random;
 */
 
 public final class NodeUtility {
-    // Total number of bits available for ID space
-    public static final int NUMBER_OF_AVAILABLE_BITS = 5;
+    /**
+    * Total number of bits available for ID space, at most 63 so that every 
+    * ID fits in a non negative long.  Can be set at startup through the 
+    * system property chord.bits, all the nodes of a ring must agree on it. 
+    */
+    public static final int NUMBER_OF_AVAILABLE_BITS = Integer.getInteger("chord.bits", 5); 
     
-    // Total number of keys possible 
-    public static final int KEYSPACE; 
+    /**
+    * Mask of the ID space, i.e, pow(2, NUMBER_OF_AVAILABLE_BITS) - 1. 
+    * Arithmetic on IDs is done modulo the total number of keys possible 
+    * by masking the result with it. 
+    */
+    public static final long KEY_MASK; 
     
     /**
     * Total number of successors whose InetSocketAddress is to be 
-    * stored by NearestSuccessor object of the node. 
+    * stored by NearestSuccessor object of the node.  The ring survives 
+    * as many consecutive failures less one, so about log N suits a ring 
+    * of N nodes.  Can be set at startup through chord.successors. 
+    * Default is 4 rather than the former 2, which left a ring of 16 nodes 
+    * broken after three consecutive nodes had failed at once. 
+    */
+    public static final int NUMBER_OF_NEAREST_SUCCESSORS = Integer.getInteger("chord.successors", 4); 
+    
+    /**
+    * Stores the port values corresponding to a particular ID, 
+    * i.e, PORTS[ID] is the port of node ID, or 0 if it has none. 
+    */
+    private static final int[] PORTS; 
+    
+    // Maximum number of idle connections kept open towards a single node
+    public static final int MAX_IDLE_CONNECTIONS_PER_NODE = 4; 
+    
+    /**
+    * Maximum number of connections open towards a single node at a time, 
+    * idle or in use, and the time in milliseconds a request waits for one 
+    * of them to close before it fails.  Cap can be set through chord.maxConnections. 
+    */
+    public static final int MAX_CONNECTIONS_PER_NODE = Integer.getInteger("chord.maxConnections", 64); 
+    
+    public static final int CONNECTION_WAIT_TIMEOUT = 2000; 
+
+    /**
+    * Time in milliseconds after which an idle pooled connection is closed 
+    * by the client.  Server closes a connection idle for twice as long, 
+    * so that it is the client which usually closes it first. 
+    */
+    public static final int CONNECTION_IDLE_TIMEOUT = 30000; 
+    
+    /**
+    * Number of event loops, and of workers for the requests blocking on a 
+    * remote call, in the server of a node.  Both can be set at startup 
+    * through the system properties chord.eventLoops and chord.workers. 
+    */
+    public static final int NUMBER_OF_EVENT_LOOPS = Integer.getInteger("chord.eventLoops", 2); 
+    
+    public static final int NUMBER_OF_WORKERS = Integer.getInteger("chord.workers", 32); 
+    
+    // Maximum number of requests waiting for a worker before new ones are refused
+    public static final int WORKER_QUEUE_CAPACITY = Integer.getInteger("chord.workerQueue", 1024); 
+    
+    /**
+    * Mode of the lookups which do not ask for one, either recursive or 
+    * iterative.  Can be set at startup through the system property 
+    * chord.lookup, recursive by default. 
+    */
+    public static final LookupMode LOOKUP_MODE = 
+        LookupMode.valueOf(System.getProperty("chord.lookup", "recursive").toUpperCase()); 
+    
+    // Time in milliseconds to wait for a hop of an iterative lookup to answer
+    public static final int HOP_TIMEOUT = Integer.getInteger("chord.hopTimeout", 1000); 
+    
+    // Number of closest preceding fingers a node offers as the next hops of a lookup
+    public static final int NUMBER_OF_NEXT_HOPS = 3; 
+    
+    /**
+    * Whether concurrent lookups of the same key share a single resolution. 
+    * Can be turned off at startup with chord.singleFlight=false. 
+    */
+    public static final boolean SINGLE_FLIGHT = !"false".equalsIgnoreCase(System.getProperty("chord.singleFlight")); 
+    
+    // Time in milliseconds after which an asynchronous lookup without a deadline gives up
+    public static final long LOOKUP_TIMEOUT = Long.getLong("chord.lookupTimeout", 10000); 
+    
+    /**
+    * Maximum number of key ranges cached by the location cache of a node, 
+    * and the time in milliseconds for which a cached range is trusted. 
+    * Can be set at startup through chord.cacheSize and chord.cacheTtl. 
     */
-    public static final int NUMBER_OF_NEAREST_SUCCESSORS = 2; 
+    public static final int LOCATION_CACHE_SIZE = Integer.getInteger("chord.cacheSize", 1024); 
     
+    public static final long LOCATION_CACHE_TIME_TO_LIVE = Long.getLong("chord.cacheTtl", 30000);
+
+    /**
+    * Maximum number of keys handed over to a joining node in a single chunk,
+    * and the number of times a failed chunk is asked for once more before
+    * the handover is given up.  Chunk size can be set through chord.transferChunk.
+    */
+    public static final int TRANSFER_CHUNK_SIZE = Integer.getInteger("chord.transferChunk", 1024);
+
+    public static final int TRANSFER_RETRIES = 5;
+
+    /**
+    * Whether a joining node takes over its keys right away, fetching a key
+    * it does not have yet from its successor on demand while the rest are
+    * handed over in the background.  Selected with chord.lazyJoin=true.
+    */
+    public static final boolean LAZY_JOIN = Boolean.getBoolean("chord.lazyJoin");
+
+    // Number of times a Put, Get or Delete may be forwarded towards the node responsible for its key
+    public static final int NUMBER_OF_FORWARDS = 3;
+
+    /**
+    * Number of lookups a joining node keeps in flight at a time, while it
+    * fills its finger table and updates the fingers of the others.  Can be
+    * set at startup through chord.joinFanOut, 1 making the lookups sequential.
+    */
+    public static final int JOIN_FAN_OUT = Integer.getInteger("chord.joinFanOut", 8);
+
+    /**
+    * Size in bytes of a slab of memory outside the heap holding the keys of
+    * a node, and the most memory they may take.  Capacity can be set at
+    * startup through chord.storeCapacity, and is to stay within the limit
+    * set by -XX:MaxDirectMemorySize.
+    */
+    public static final int STORE_SLAB_SIZE = 1 << 20;
+
+    public static final long STORE_CAPACITY = Long.getLong("chord.storeCapacity", 256L << 20);
+
+    /**
+    * Directory under which every node keeps the write ahead log and the
+    * snapshots of its keys, in a directory of its own named after its
+    * address.  Keys are kept in memory alone unless chord.dataDir is set.
+    */
+    public static final String DATA_DIRECTORY = System.getProperty("chord.dataDir");
+
+    // Time in milliseconds between the snapshots of the keys of a node
+    public static final long SNAPSHOT_INTERVAL = Long.getLong("chord.snapshotInterval", 60000);
+
+    // Time in milliseconds between the checks whether the routing state of a node is to be saved
+    public static final long ROUTING_SNAPSHOT_INTERVAL = Long.getLong("chord.routingSnapshotInterval", 5000);
+
+    /**
+    * Time in milliseconds between the rounds of Stabilize, FixFingers and
+    * NearestSuccessors, set at startup through chord.stabilizeInterval,
+    * chord.fixFingersInterval and chord.successorsInterval.  Every delay
+    * is spread at random by the fraction chord.maintenanceJitter of it.
+    */
+    public static final long STABILIZE_INTERVAL = Long.getLong("chord.stabilizeInterval", 20);
+
+    public static final long FIX_FINGERS_INTERVAL = Long.getLong("chord.fixFingersInterval", 20);
+
+    public static final long NEAREST_SUCCESSORS_INTERVAL = Long.getLong("chord.successorsInterval", 20);
+
+    public static final double MAINTENANCE_JITTER = Double.parseDouble(System.getProperty("chord.maintenanceJitter", "0.2"));
+
+    /**
+    * Longest time in milliseconds between the rounds of Stabilize, FixFingers
+    * and NearestSuccessors, reached by doubling their delay while the ring
+    * stays unchanged.  Set at startup through chord.maintenanceMaxInterval,
+    * the intervals above making the rounds periodic again.
+    */
+    public static final long MAINTENANCE_MAX_INTERVAL = Long.getLong("chord.maintenanceMaxInterval", 500);
+
+    // Number of threads running the maintenance tasks of all the nodes of a process
+    public static final int MAINTENANCE_THREADS = Integer.getInteger("chord.maintenanceThreads", 4);
+
+    // Time in milliseconds to wait for a node to answer a maintenance task, so that a hung node holds up no thread
+    public static final int MAINTENANCE_TIMEOUT = Integer.getInteger("chord.maintenanceTimeout", 2000);
+
+    // Number of threads running the tasks of all the nodes which write to the disk, e.g, Snapshot
+    public static final int STORAGE_THREADS = Integer.getInteger("chord.storageThreads", 1);
+
     /**
-    * Stores size of step for ith finger, 
-    * i.e, for key = i, value = pow(2, i - 1)
+    * Whether the request handlers and the maintenance threads of a node run 
+    * on virtual threads instead of platform threads.  Selected at startup 
+    * with the system property chord.threads=virtual, and ignored on a JVM 
+    * which does not provide virtual threads. 
     */
-    private static final Map<Integer, Integer> STEPS; 
+    public static final boolean VIRTUAL_THREADS; 
+    
+    // Thread.ofVirtual and Thread.Builder methods, null if not provided by the JVM
+    private static final Method OF_VIRTUAL; 
+    private static final Method BUILDER_NAME; 
+    private static final Method BUILDER_UNSTARTED; 
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR; 
     
-    // Stores the port values corresponding to a particular ID.
-    private static final Map<Integer, Integer> PORTS; 
+    // SHA1 digest and buffers for hashValue, one per thread
+    private static final ThreadLocal<HashState> HASH_STATE = ThreadLocal.withInitial(HashState::new); 
     
-    // Initializes STEPS
+    // Persistent connections towards other nodes, shared by all requests
+    private static final ConnectionPool CONNECTIONS = 
+        new ConnectionPool(MAX_IDLE_CONNECTIONS_PER_NODE, MAX_CONNECTIONS_PER_NODE, 
+                           CONNECTION_WAIT_TIMEOUT, CONNECTION_IDLE_TIMEOUT); 
+    
+    // Persistent connections towards other nodes, for the requests sent without blocking
+    private static final AsyncConnectionPool ASYNC_CONNECTIONS = 
+        new AsyncConnectionPool(MAX_IDLE_CONNECTIONS_PER_NODE, CONNECTION_IDLE_TIMEOUT); 
+
+    // Initializes PORTS and KEY_MASK
     static {
-        STEPS = initializeSteps();
+        if (NUMBER_OF_AVAILABLE_BITS < 1 || NUMBER_OF_AVAILABLE_BITS > 63) {
+            throw new IllegalArgumentException("chord.bits must lie between 1 and 63, found " 
+                                               + NUMBER_OF_AVAILABLE_BITS); 
+        }
+        if (NUMBER_OF_NEAREST_SUCCESSORS < 1) {
+            throw new IllegalArgumentException("chord.successors must be at least 1, found " 
+                                               + NUMBER_OF_NEAREST_SUCCESSORS); 
+        }
         PORTS = initializePorts();
-        KEYSPACE = 2 * getithStep(NUMBER_OF_AVAILABLE_BITS - 1); 
+        KEY_MASK = -1L >>> (64 - NUMBER_OF_AVAILABLE_BITS); 
     }
     
-    // Private constructor to ensure non-instantiability
-    private NodeUtility() {}
-    
     /**
-    * Initialize STEPS. 
+    * Looks up the virtual thread API reflectively, so that the code still 
+    * runs on JVMs older than Java 21 with platform threads only. 
     */
-    private static Map<Integer, Integer> initializeSteps() {
-        Map<Integer, Integer> steps = new HashMap<>(); 
-        steps.put(0, 1); 
-        int value = 1; 
+    static {
+        Method ofVirtual = null; 
+        Method builderName = null; 
+        Method builderUnstarted = null; 
+        Method perTaskExecutor = null; 
+        
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder"); 
+            ofVirtual = Thread.class.getMethod("ofVirtual"); 
+            builderName = builder.getMethod("name", String.class); 
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class); 
+            perTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor"); 
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null; 
+        }
         
-        for (int key = 1; key < NUMBER_OF_AVAILABLE_BITS; key++) {
-            value *= 2; 
-            steps.put(key, value);
+        OF_VIRTUAL = ofVirtual; 
+        BUILDER_NAME = builderName; 
+        BUILDER_UNSTARTED = builderUnstarted; 
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = perTaskExecutor; 
+        
+        boolean virtualRequested = "virtual".equalsIgnoreCase(System.getProperty("chord.threads")); 
+        if (virtualRequested && OF_VIRTUAL == null) {
+            System.out.printf("Virtual threads are not available, platform threads will be used.\n"); 
         }
-        return steps; 
+        VIRTUAL_THREADS = virtualRequested && OF_VIRTUAL != null; 
     }
     
+    // Private constructor to ensure non-instantiability
+    private NodeUtility() {}
+    
     /**
     * Initialize PORTS by taking data from a file Ports.csv
     */
-    private static Map<Integer, Integer> initializePorts() {
-        Map<Integer, Integer> ports = new HashMap<>(); 
+    private static int[] initializePorts() {
+        int[] ports = new int[0]; 
         
         try {
             BufferedReader in = new BufferedReader(new FileReader("Ports.csv")); 
@@ -85,7 +295,11 @@ public final class NodeUtility {
                 String[] contents = line.split("\\s+");
                 int key = Integer.parseInt(contents[0]); 
                 int value = Integer.parseInt(contents[1]); 
-                ports.put(key, value);
+                
+                if (key >= ports.length) {
+                    ports = Arrays.copyOf(ports, Math.max(key + 1, 2 * ports.length)); 
+                }
+                ports[key] = value;
             }
             
             in.close();
@@ -103,18 +317,23 @@ public final class NodeUtility {
     * @return Port associated with that ID.
     */
     public static int getPort(int ID) {
-        return PORTS.get(ID); 
+        int port = ID >= 0 && ID < PORTS.length ? PORTS[ID] : 0; 
+        
+        if (port == 0) {
+            throw new IllegalArgumentException("No port is given for ID " + ID + " in Ports.csv"); 
+        }
+        return port; 
     }
     
     /**
-    * Finds the size of ith step in finger table 
+    * Finds the size of ith step in finger table, i.e, pow(2, i). 
     *  
     * @param  i
     *         index in finger table whose step is to be found
     * @return size of ith step in finger table 
     */
-    public static int getithStep(int i) {
-        return STEPS.get(i); 
+    public static long getithStep(int i) {
+        return 1L << i; 
     } 
     
     /**
@@ -123,30 +342,51 @@ public final class NodeUtility {
     * Bit size of hash is bounded from above by 
     * NUMBER_OF_AVAILABLE_BITS.
     * 
+    * The 160 bit digest is split, from its most significant bit onwards, 
+    * into chunks of NUMBER_OF_AVAILABLE_BITS bits which are XORed together. 
+    * Bits left over after the last full chunk form one more, shorter chunk. 
+    * Chunks are taken out of the digest bytes with shifts, and the digest 
+    * and the buffers are reused by the thread, so nothing is allocated. 
+    * 
     * @param  string
     *         String whose hash is to be determined
     * @return hash value of the String 
     */
-    public static int hashValue(String string) {
+    public static long hashValue(String string) {
+        HashState state = HASH_STATE.get(); 
         
         // Gets the 160 bit hash from SHA1
-        byte[] bytes = getDigest(string);
-        
-        // Convert that 160 bits to a String 
-        String s = getBinaryString(bytes); 
+        byte[] bytes = state.digest(string);
+        int totalBits = bytes.length * 8; 
         
-        // Do the XOR operation on all 32 possible 5 bit numbers
-        int hash = 0; 
-        for (int i = 0; i < 32; i++) {
-            int beginIndex = i * 5; 
-            String str = s.substring(beginIndex, beginIndex + 5); 
-            int integer = Integer.parseInt(str, 2); 
-            hash ^= integer; 
+        // Do the XOR operation on all possible chunks of the digest
+        long hash = 0; 
+        for (int offset = 0; offset < totalBits; offset += NUMBER_OF_AVAILABLE_BITS) {
+            hash ^= bitsOf(bytes, offset, Math.min(NUMBER_OF_AVAILABLE_BITS, totalBits - offset)); 
         }
         
         return hash; 
     }
     
+    /**
+    * Reads given number of bits, at most 63, out of a byte array starting 
+    * at given bit, counting from the most significant bit of first byte. 
+    */
+    private static long bitsOf(byte[] bytes, int offset, int length) {
+        long value = 0; 
+        int end = offset + length; 
+        
+        for (int bit = offset; bit < end; ) {
+            int used = bit & 7; 
+            int taken = Math.min(8 - used, end - bit); 
+            int bits = ((bytes[bit >>> 3] & 0xFF) >>> (8 - used - taken)) & ((1 << taken) - 1); 
+            
+            value = (value << taken) | bits; 
+            bit += taken; 
+        }
+        return value; 
+    }
+    
     /**
     * Uses auxiliary method hashValue(String s) to calculate 
     * the hashvalue of given socket address.
@@ -155,83 +395,86 @@ public final class NodeUtility {
     *         Socket Address for which the hash is to be calculated
     * @return hash value of the Socket Address
     */
-    public static int hashValue(InetSocketAddress address) {
+    public static long hashValue(InetSocketAddress address) {
         return hashValue(address.toString());  
     }
     
     /**
-    * Calculates the 160 bit cryptographic hash of String using 
-    * SHA1 algorithm. 
-    * 
-    * @param  s
-    *         String whose hash is to be determined
-    * @return array of bytes
+    * SHA1 digest along with the buffers used to calculate the hash, 
+    * kept one per thread as MessageDigest is not thread safe. 
     */
-    private static byte[] getDigest(String s) {
-        byte[] bytes = null; 
+    private static final class HashState {
+        private final MessageDigest messageDigest; 
         
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA1"); 
-            messageDigest.update(s.getBytes());
-            bytes = messageDigest.digest(); 
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println(e.getMessage()); 
-        }
+        // Bytes of the String being hashed
+        private byte[] input = new byte[64]; 
         
-        return bytes; 
-    }
-    
-    /**
-    * Takes an array of bytes. Convert a byte to its binary form
-    * and append all of the bytes in array to form a binary string 
-    * of length 160. 
-    * A byte is extended to its 8 bit form even if it's actual 
-    * length is not so. 
-    * 
-    * @param  bytes
-    *         Array of bytes
-    * @return binary representation of all bytes combined. 
-    */
-    private static String getBinaryString(byte[] bytes) {
-        StringBuilder s = new StringBuilder(); 
+        // 160 bit digest of the String being hashed
+        private final byte[] output = new byte[20]; 
         
-        for (byte b : bytes) {
-            s.append(formatByte(b)); 
+        HashState() {
+            MessageDigest messageDigest = null; 
+            
+            try {
+                messageDigest = MessageDigest.getInstance("SHA1"); 
+            } catch (NoSuchAlgorithmException e) {
+                System.out.println(e.getMessage()); 
+            }
+            this.messageDigest = messageDigest; 
         }
-        return s.toString(); 
-    }
-    
-    /**
-    * Takes a byte and returns its binary representation in 8 bits.
-    * 
-    * @param  b
-    *         byte to be converted
-    * @return binary representation of the byte of length 8
-    */
-    private static String formatByte(byte b) {
-        // To extend the length of positive byte above 8
-        int i = 0x100 | b; 
         
-        String s = Integer.toBinaryString(i); 
+        /**
+        * Calculates the 160 bit cryptographic hash of String using 
+        * SHA1 algorithm.  A String of ASCII characters is copied byte 
+        * by byte, any other String is encoded with the default charset, 
+        * just like String.getBytes(). 
+        * 
+        * @param  s
+        *         String whose hash is to be determined
+        * @return array of bytes, reused by the next call of this thread
+        */
+        byte[] digest(String s) {
+            int length = s.length(); 
+            
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)]; 
+            }
+            
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i); 
+                
+                if (c >= 0x80) {
+                    byte[] encoded = s.getBytes(); 
+                    messageDigest.update(encoded, 0, encoded.length);
+                    return finish(); 
+                }
+                input[i] = (byte) c; 
+            }
+            messageDigest.update(input, 0, length);
+            return finish(); 
+        }
         
-        return s.substring(s.length() - 8, s.length());
+        private byte[] finish() {
+            try {
+                messageDigest.digest(output, 0, output.length); 
+            } catch (DigestException e) {
+                System.out.println(e.getMessage()); 
+            }
+            return output; 
+        }
     }
     
     /**
     * Checks whether given ID belongs to the given range or not. 
     * 
-    * Cases where border are included are dealt with by changing 
-    * the border so that now border gets excluded. 
-    * For example, 
-    * >= 5 becomes > 5 - 1
-    * <= 7 becomes < 7 + 1
+    * Borders are compared as they are, included or excluded as asked, 
+    * so that no border is moved past the ends of the ID space. 
     * 
-    * Cases where right border is less than left border, is dealt
-    * with by checking whether ID belongs to the remaining range 
-    * or not. 
+    * Cases where right border is less than left border, i.e, the range 
+    * wraps around zero, are dealt with by checking whether ID lies after 
+    * the left border or before the right border. 
     * For example, 
-    * ID belongs to (5, 1) is opposite of whether ID belongs to (1, 5) 
-    * with border adjustments. 
+    * ID belongs to (27, 3] if ID > 27 or ID <= 3. 
     * 
     * @param  left
     *         left border
@@ -246,20 +489,47 @@ public final class NodeUtility {
     * @return true, if key lies in the range,
     *         false, otherwise
     */
-    public static boolean belongs(int left, boolean leftInclusive,  
-                                  int right, boolean rightInclusive, int ID) {
+    public static boolean belongs(long left, boolean leftInclusive,  
+                                  long right, boolean rightInclusive, long ID) {
+        
+        boolean afterLeft = leftInclusive ? ID >= left : ID > left; 
+        boolean beforeRight = rightInclusive ? ID <= right : ID < right; 
         
         if (left < right) {
-            if (leftInclusive) left--; 
-            if (rightInclusive) right++; 
-            
-            return left < ID && ID < right;
+            return afterLeft && beforeRight; 
             
         } else if (left == right) {
             return leftInclusive || rightInclusive ? true : ID != left; 
             
         }
-        return !belongs(right, !rightInclusive, left, !leftInclusive, ID);
+        return afterLeft || beforeRight; 
+    }
+    
+    /**
+    * Adds given distance to an ID, going clockwise around the ring. 
+    * 
+    * @param  ID
+    *         key from where to move
+    * @param  distance
+    *         number of keys to move by, negative to go anticlockwise
+    * @return key reached, modulo the total number of keys possible
+    */
+    public static long addToKey(long ID, long distance) {
+        return (ID + distance) & KEY_MASK; 
+    }
+    
+    /**
+    * Finds the distance from one ID to another, going clockwise around 
+    * the ring. 
+    * 
+    * @param  from
+    *         key from where the distance is measured
+    * @param  to
+    *         key up to which the distance is measured
+    * @return number of keys to move by from the first key to reach the second
+    */
+    public static long distance(long from, long to) {
+        return (to - from) & KEY_MASK; 
     }
     
     /**
@@ -310,37 +580,306 @@ public final class NodeUtility {
         return new String(c); 
     }
     
+    /**
+    * Checks whether the server is known to speak the text format only, so 
+    * that it is not sent the requests which only the binary format carries, 
+    * e.g, StabilizeExchange. 
+    * 
+    * @param  server 
+    *         Reference to the server
+    * @return true, if the server speaks the text format only 
+    *         false, otherwise
+    */
+    public static boolean isTextOnly(Peer server) {
+        return CONNECTIONS.isTextOnly(server.address); 
+    }
+    
     /**
     * Communicates with server on the given address to get the request 
-    * served and returns the response. 
+    * served and returns the response.  Connection is taken from the 
+    * pool of persistent connections and handed back after the exchange. 
+    * If a reused connection turns out to be closed by the server, the 
+    * request is sent once more over a fresh connection. 
     * 
-    * @param  serverAddress 
-    *         InetSocketAddress of the server
+    * @param  server 
+    *         Reference to the server
     * @param  request
     *         request that needs to be served
     * @return null, if there was any error in communication 
-    *         response string from server, otherwise
+    *         response from server, otherwise
+    */
+    public static Message processRequest(Peer server, Message request) {
+        return processRequest(server, request, 0); 
+    }
+    
+    /**
+    * Sends the request to the server and waits for its response, at most 
+    * for the given time.  A server which does not answer in time is taken 
+    * to have failed, and the connection towards it is closed. 
+    * 
+    * @param  server 
+    *         Reference to the server
+    * @param  request
+    *         request that needs to be served
+    * @param  timeout
+    *         time in milliseconds to wait for the response, 0 to wait forever
+    * @return null, if there was any error in communication or the time ran out
+    *         response from server, otherwise
     */
-    public static String processRequest(InetSocketAddress serverAddress, String request) {
+    public static Message processRequest(Peer server, Message request, int timeout) {
+        InetSocketAddress serverAddress = server.address; 
+        ConnectionPool.Connection connection = null; 
+        
         try {
-            Socket socket = new Socket(serverAddress.getAddress(), serverAddress.getPort());
-            
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())); 
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())); 
+            connection = CONNECTIONS.borrow(serverAddress); 
+            Message response = exchange(connection, request, timeout); 
             
-            out.write(request + "\n");
-            out.flush();
-            
-            String response = in.readLine(); 
+            // A request which changes the state of the peer is not sent twice
+            if (response == null && connection.isReused() && isIdempotent(request)) {
+                connection = CONNECTIONS.open(serverAddress); 
+                response = exchange(connection, request, timeout); 
+            }
             
-            socket.close();
+            if (response != null) {
+                CONNECTIONS.release(connection);
+            }
+            return response; 
+        } catch (Exception e) {
+            return null; 
+        }
+    }
+    
+    /**
+    * Sends the request to the server without waiting for its response. 
+    * Only the binary format is spoken, so a text-only server fails to answer. 
+    * 
+    * @param  server 
+    *         Reference to the server
+    * @param  request
+    *         request that needs to be served
+    * @param  timeout
+    *         time in milliseconds to wait for the response
+    * @return future completed with the response from server, or 
+    *         exceptionally if there was any error in communication or the time ran out
+    */
+    public static CompletableFuture<Message> processRequestAsync(Peer server, Message request, long timeout) {
+        return ASYNC_CONNECTIONS.exchange(server.address, request, timeout); 
+    }
+    
+    /**
+    * Sends a request whose response carries a node, e.g, FindSuccessor. 
+    * 
+    * @param  server 
+    *         Reference to the server
+    * @param  request
+    *         request that needs to be served
+    * @return null, if there was any error in communication 
+    *         Reference to the node sent by the server, otherwise
+    */
+    public static Peer requestPeer(Peer server, Message request) {
+        return requestPeer(server, request, 0); 
+    }
+    
+    /**
+    * Sends a request whose response carries a node, waiting for it at most 
+    * for the given time. 
+    * 
+    * @param  server 
+    *         Reference to the server
+    * @param  request
+    *         request that needs to be served
+    * @param  timeout
+    *         time in milliseconds to wait for the response, 0 to wait forever
+    * @return null, if there was any error in communication or the time ran out
+    *         Reference to the node sent by the server, otherwise
+    */
+    public static Peer requestPeer(Peer server, Message request, int timeout) {
+        Message response = processRequest(server, request, timeout); 
+        
+        if (response == null || response.opcode != Message.ADDRESS) {
+            return null; 
+        }
+        return response.peer; 
+    }
+    
+    /**
+    * Sends the request over the given connection.  Connection is closed 
+    * if the exchange does not complete. 
+    * 
+    * @param  connection
+    *         Connection through which the request is to be sent
+    * @param  request
+    *         request that needs to be served
+    * @param  timeout
+    *         time in milliseconds to wait for the response, 0 to wait forever
+    * @return null, if there was any error in communication 
+    *         response from server, otherwise
+    * @throws SocketTimeoutException
+    *         if the response has not arrived in time, so that the request 
+    *         is not sent once more 
+    */
+    private static Message exchange(ConnectionPool.Connection connection, Message request, 
+                                    int timeout) throws SocketTimeoutException {
+        try {
+            Message response = connection.exchange(request, timeout); 
             
+            if (response == null) {
+                connection.close();
+            }
             return response; 
+        } catch (SocketTimeoutException e) {
+            connection.close(); 
+            throw e; 
         } catch (Exception e) {
+            connection.close(); 
             return null; 
         }
     }
     
+    /**
+    * Checks whether the request may be sent once more when its response 
+    * is lost.  Requests which store, remove or hand over keys, or update a 
+    * finger, may have been served already, and are not. 
+    * 
+    * @param  request
+    *         request that needs to be served
+    * @return true, if serving the request twice does no harm 
+    *         false, otherwise
+    */
+    public static boolean isIdempotent(Message request) {
+        switch (request.opcode) {
+            case Message.PUT: 
+            case Message.DELETE: 
+            case Message.UPDATE_ITH_FINGER: 
+            case Message.TRANSFER_KEYS: 
+                return false; 
+            default: 
+                return true; 
+        }
+    }
+    
+    /**
+    * Checks whether this JVM provides virtual threads. 
+    * 
+    * @return true, if virtual threads are available 
+    *         false, otherwise
+    */
+    public static boolean supportsVirtualThreads() {
+        return OF_VIRTUAL != null; 
+    }
+    
+    /**
+    * Creates an unstarted thread for the given task, virtual or platform 
+    * as per VIRTUAL_THREADS. 
+    * 
+    * @param  task
+    *         task to be run by the thread
+    * @param  name
+    *         name of the thread
+    * @return thread which is yet to be started
+    */
+    public static Thread newThread(Runnable task, String name) {
+        return newThread(task, name, VIRTUAL_THREADS); 
+    }
+    
+    /**
+    * Creates an unstarted thread for the given task. 
+    * 
+    * @param  task
+    *         task to be run by the thread
+    * @param  name
+    *         name of the thread
+    * @param  virtual
+    *         whether a virtual thread is to be created, if available
+    * @return thread which is yet to be started
+    */
+    public static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name); 
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task); 
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+        return new Thread(task, name); 
+    }
+    
+    /**
+    * Runs the task for every index from 0 to count - 1, on at most fanOut
+    * threads at a time, and waits for all of them to complete.  Meant for
+    * independent remote calls, which then overlap instead of paying a round
+    * trip each, one after another.
+    *
+    * @param count
+    *        number of indexes to be run
+    * @param fanOut
+    *        maximum number of indexes run concurrently
+    * @param task
+    *        task to be run for every index
+    * @param name
+    *        prefix of the names of the threads
+    */
+    public static void forEachConcurrently(int count, int fanOut, IntConsumer task, String name) {
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                task.accept(i);
+            }
+        };
+
+        Thread[] threads = new Thread[Math.max(Math.min(fanOut, count) - 1, 0)];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = newThread(worker, name + "-" + t);
+            threads[t].start();
+        }
+
+        // Calling thread takes its share rather than sitting idle
+        worker.run();
+
+        for (Thread thread : threads) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+    * Creates the pool of workers serving the requests which block on a 
+    * remote call.  With platform threads the pool is bounded by 
+    * NUMBER_OF_WORKERS threads and WORKER_QUEUE_CAPACITY waiting requests. 
+    * With virtual threads every request gets its own virtual thread, as a 
+    * virtual thread blocked on a remote call holds no platform thread. 
+    * 
+    * @param  virtual
+    *         whether the workers should be virtual threads, if available
+    * @return pool of workers
+    */
+    public static ExecutorService newWorkerPool(boolean virtual) {
+        if (virtual && NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null); 
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(NUMBER_OF_WORKERS, NUMBER_OF_WORKERS, 
+                                                            60, TimeUnit.SECONDS, 
+                                                            new ArrayBlockingQueue<>(WORKER_QUEUE_CAPACITY)); 
+        workers.allowCoreThreadTimeOut(true);
+        return workers; 
+    }
+    
     /**
     * Parse the InetSocketAddress from the given presentation 
     * in the form of a string. 
@@ -351,6 +890,9 @@ public final class NodeUtility {
     * InetAddress = amazon.in/52.95.116.115
     * port = 80
     * 
+    * The IP address present in the string is used as it is, so no 
+    * hostname resolution takes place. 
+    * 
     * @param  s
     *         String which is to be parsed
     * @return InetSocketAddress whose .toString() returns String s
@@ -363,7 +905,14 @@ public final class NodeUtility {
         String portAsString = s.substring(indexOfColon + 1, s.length()); 
         int port = Integer.parseInt(portAsString); 
         
-        return new InetSocketAddress(hostname, port);
+        String ip = s.substring(indexOfSlash + 1, indexOfColon); 
+        try {
+            // Literal IP address is parsed without any lookup
+            byte[] ipBytes = InetAddress.getByName(ip).getAddress(); 
+            return new InetSocketAddress(InetAddress.getByAddress(hostname.isEmpty() ? null : hostname, ipBytes), port); 
+        } catch (UnknownHostException e) {
+            return new InetSocketAddress(hostname, port);
+        }
     }
     
     /**
@@ -373,23 +922,16 @@ public final class NodeUtility {
     * @param  i
     *         index of the finger that is to be updated
     * @param  recentlyJoinedNode
-    *         InetSocketAddress of node which has recently joined the chord ring
+    *         Reference to node which has recently joined the chord ring
     * @param  requestingNode
-    *         InetSocketAddress of node who wants to update its ith finger
+    *         Reference to node who wants to update its ith finger
     * @return true, if requestingNode needs to update its ith finger, 
     *         false, otherwise
     */
-    public static boolean isValidForithFingerUpdate(int i, InetSocketAddress recentlyJoinedNode, InetSocketAddress requestingNode) {
-        int nodeKey = hashValue(recentlyJoinedNode); 
-        int fingerKey = hashValue(requestingNode); 
-        int requiredDistance = getithStep(i); 
-        int actualDistance = -1; 
+    public static boolean isValidForithFingerUpdate(int i, Peer recentlyJoinedNode, Peer requestingNode) {
+        long requiredDistance = getithStep(i); 
+        long actualDistance = distance(requestingNode.key, recentlyJoinedNode.key); 
         
-        if (nodeKey > fingerKey) {
-            actualDistance = nodeKey - fingerKey; 
-        } else {
-            actualDistance = KEYSPACE - (fingerKey - nodeKey); 
-        }
         return actualDistance == requiredDistance; 
     }
 } 
\ No newline at end of file
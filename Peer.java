@@ -0,0 +1,52 @@
+import java.net.InetSocketAddress;
+
+/**
+* This class implements a reference to a node of the chord ring, i.e, its
+* InetSocketAddress along with its key.  Key is calculated once, when the
+* reference is created, so that placing the node on the ring while routing
+* is a comparison of keys rather than hashing its address every time.
+*
+* @author Vijay Kumar
+*/
+
+public final class Peer {
+    // InetSocketAddress of the node
+    public final InetSocketAddress address;
+
+    // Identifier of the node, hash value of its address
+    public final long key;
+
+    /**
+    * Creates the reference, calculating the key from the address.
+    *
+    * @param address
+    *        InetSocketAddress of the node
+    */
+    public Peer(InetSocketAddress address) {
+        this.address = address;
+        this.key = NodeUtility.hashValue(address);
+    }
+
+    /**
+    * Two references are equal if they refer to the same address.
+    */
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        } else if (!(object instanceof Peer)) {
+            return false;
+        }
+        return address.equals(((Peer) object).address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
@@ -0,0 +1,203 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* This class implements a maintenance task of a node run once every period,
+* e.g, Stabilize or FixFingers.  Tasks of all the nodes of a process share
+* a small pool of MAINTENANCE_THREADS threads, instead of a thread each
+* sleeping between its rounds.  Tasks which write to the disk, e.g,
+* Snapshot, share a pool of STORAGE_THREADS threads of their own, so that
+* a long fsync never holds up the rounds which keep the ring correct.
+*
+* Every round is scheduled once the previous one has completed, so rounds
+* of a task never overlap, after a delay of the period spread at random by
+* the jitter.  Nodes started together thus drift apart rather than waking
+* at the same instant.
+*
+* Delay adapts to what the rounds find.  A round which finds nothing to
+* correct doubles the delay, up to the longest period, while a round which
+* corrects something or fails to reach a node brings it back to the period
+* at once.  Node may also call tighten when it learns of a change itself,
+* e.g, a notify from a new predecessor, which brings the next round forward.
+* A quiet ring is thus probed rarely, and one under churn as often as before.
+*
+* @author Vijay Kumar
+*/
+
+public abstract class PeriodicTask implements Runnable {
+    // Threads shared by the tasks of all the nodes
+    private static final ScheduledThreadPoolExecutor SCHEDULER = 
+        newScheduler(NodeUtility.MAINTENANCE_THREADS, "Maintenance-");
+
+    // Threads shared by the tasks which write to the disk
+    private static final ScheduledThreadPoolExecutor STORAGE_SCHEDULER = 
+        newScheduler(NodeUtility.STORAGE_THREADS, "Storage-");
+
+    // Shortest time in milliseconds between the rounds of the task
+    private final long period;
+
+    // Longest time in milliseconds between the rounds of the task
+    private final long maximumPeriod;
+
+    // Time in milliseconds before the next round
+    private long delay;
+
+    // Whether a change has been reported since the present round started
+    private boolean tightened;
+
+    // Next round, null while a round is in progress
+    private ScheduledFuture<?> next;
+
+    /**
+    * Boolean value to keep track of when to stop. Kept as volatile
+    * so that the value of active is always checked from the main
+    * memory instead of storing it in a cache.
+    */
+    private volatile boolean active;
+
+    /**
+    * Initializes a task run at a fixed period.
+    *
+    * @param period
+    *        Time in milliseconds between the rounds of the task
+    */
+    protected PeriodicTask(long period) {
+        this(period, period);
+    }
+
+    /**
+    * Initializes a task whose period adapts to the changes it finds.
+    *
+    * @param period
+    *        Shortest time in milliseconds between the rounds of the task
+    * @param maximumPeriod
+    *        Longest time in milliseconds between the rounds of the task
+    */
+    protected PeriodicTask(long period, long maximumPeriod) {
+        this.period = period;
+        this.maximumPeriod = Math.max(period, maximumPeriod);
+        this.delay = period;
+        this.active = true;
+    }
+
+    /**
+    * Runs a single round of the task.
+    *
+    * @return true, if the round has corrected something or failed, so
+    *         that the next one is to come soon
+    *         false, if nothing has changed
+    */
+    protected abstract boolean runOnce();
+
+    /**
+    * Checks whether the rounds of the task write to the disk, so that they
+    * run on the storage threads.
+    *
+    * @return true, if the task writes to the disk
+    *         false, otherwise
+    */
+    protected boolean writesToDisk() {
+        return false;
+    }
+
+    /**
+    * Schedules the first round of the task.
+    */
+    public void start() {
+        synchronized(this) {
+            schedule();
+        }
+    }
+
+    /**
+    * Stops the task.  A round in progress completes, and no other is run.
+    */
+    public void stop() {
+        this.active = false;
+
+        synchronized(this) {
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+    * Brings the delay back to the period, and the next round forward if
+    * it is due later than that.
+    */
+    public synchronized void tighten() {
+        tightened = true;
+
+        if (delay > period) {
+            delay = period;
+
+            if (next != null && next.getDelay(TimeUnit.MILLISECONDS) > period && next.cancel(false)) {
+                schedule();
+            }
+        }
+    }
+
+    public synchronized long getDelay() {
+        return delay;
+    }
+
+    @Override
+    public final void run() {
+        if (!active) {
+            return;
+        }
+
+        synchronized(this) {
+            next = null;
+            tightened = false;
+        }
+
+        boolean changed = true;
+        try {
+            changed = runOnce();
+        } catch (RuntimeException e) {
+            // A failed round must not end the task
+            e.printStackTrace();
+        }
+
+        synchronized(this) {
+            delay = changed || tightened ? period : Math.min(delay * 2, maximumPeriod);
+            schedule();
+        }
+    }
+
+    /**
+    * Schedules the next round after the present delay, spread by the jitter.
+    */
+    private void schedule() {
+        if (!active) {
+            return;
+        }
+
+        long spread = (long) (delay * NodeUtility.MAINTENANCE_JITTER);
+        long jittered = delay + (spread > 0 ? ThreadLocalRandom.current().nextLong(-spread, spread + 1) : 0);
+        ScheduledThreadPoolExecutor scheduler = writesToDisk() ? STORAGE_SCHEDULER : SCHEDULER;
+        next = scheduler.schedule(this, Math.max(jittered, 1), TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledThreadPoolExecutor newScheduler(int size, String name) {
+        AtomicInteger threads = new AtomicInteger();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(size, task -> {
+            Thread thread = NodeUtility.newThread(task, name + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Rounds brought forward leave no cancelled ones behind in the queue
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
@@ -0,0 +1,573 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+* This is a final class which converts messages to and from their
+* presentation on the wire.  Two formats are understood.
+*
+* Binary format is a length prefixed frame,
+*
+*       | length : int | opcode : byte | fields of the opcode |
+*
+* where length counts the bytes following it, identifiers are 8 byte longs
+* and an address is the raw IP bytes and the port, followed by the hostname
+* the node was started with, since the identifier of a node is the hash of
+* its complete address.
+*
+* Text format is the older one, a line of the form Command:Parameters.  It
+* is still served so that text and binary nodes can coexist while the ring
+* is being upgraded.  A client asks for the binary format by sending a
+* version byte as soon as it connects, which no text request can start
+* with, and the server answers with the version it is going to speak.
+* A server which does not answer the version byte in time is asked in
+* the text format, and taken to be a text-only node once it answers so,
+* for TEXT_ONLY_TIMEOUT, after which it is asked for the binary format
+* once more.
+* Requests which came along with the binary format, e.g, NextHop, have no
+* text presentation, so the text-only nodes are asked the older requests.
+* Values of keys, e.g, Put and Get, are likewise stored by binary nodes only.
+*
+* @author Vijay Kumar
+*/
+
+public final class Protocol {
+    // Version of the binary format spoken by this node
+    public static final byte VERSION = 1;
+
+    /**
+    * Whether this node asks for the binary format on the connections it
+    * opens.  Set chord.protocol=text at startup to speak text only.
+    */
+    public static final boolean BINARY = !"text".equalsIgnoreCase(System.getProperty("chord.protocol"));
+
+    // Time in milliseconds to wait for the server to answer the version byte
+    public static final int HANDSHAKE_TIMEOUT = 2000;
+
+    // Time in milliseconds for which a node which has answered in the text format is taken to be text-only
+    public static final long TEXT_ONLY_TIMEOUT = 60000;
+
+    // Largest frame accepted, larger ones are taken as a corrupt stream
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    // Longest name of a key in bytes, as its length is written as an unsigned short
+    public static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    // Private constructor to ensure non-instantiability
+    private Protocol() {}
+
+    /**
+    * Checks whether the first byte sent over a connection asks for the
+    * binary format.  Text requests always start with a printable character.
+    *
+    * @param  firstByte
+    *         first byte received over the connection
+    * @return true, if it is a version byte of the binary format
+    *         false, otherwise
+    */
+    public static boolean isVersionByte(byte firstByte) {
+        return firstByte > 0 && firstByte < 0x20 && firstByte != '\r' && firstByte != '\n';
+    }
+
+
+    /**********************************************************************************************
+    *                                                                                            *
+    *                                    Binary format                                           *
+    *                                                                                            *
+    **********************************************************************************************/
+
+
+    /**
+    * Encodes the message as a complete frame, length included.
+    *
+    * @param  message
+    *         Message to be encoded
+    * @param  buffer
+    *         Buffer to be reused if large enough, may be null
+    * @return buffer holding the frame, ready to be read from
+    */
+    public static ByteBuffer encode(Message message, ByteBuffer buffer) {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(256);
+        }
+        buffer.clear();
+        buffer.putInt(0);
+        buffer.put(message.opcode);
+
+        switch (message.opcode) {
+            case Message.FIND_SUCCESSOR:
+            case Message.FIND_PREDECESSOR:
+            case Message.NEXT_HOP:
+                buffer.putLong(message.id);
+                break;
+
+            case Message.TRANSFER_KEYS:
+                buffer.putLong(message.id);
+                buffer.putLong(message.secondId);
+                break;
+
+            case Message.CHANGE_PREDECESSOR:
+            case Message.CHANGE_SUCCESSOR:
+            case Message.NOTIFY:
+            case Message.STABILIZE_EXCHANGE:
+            case Message.ADDRESS:
+                buffer = putAddress(buffer, message.peer.address);
+                break;
+
+            case Message.UPDATE_ITH_FINGER:
+                buffer.putInt(message.index);
+                buffer = putAddress(buffer, message.peer.address);
+                break;
+
+            case Message.TRANSFER_CHUNK:
+                buffer.putLong(message.id);
+                buffer.putLong(message.secondId);
+                buffer.putLong(message.cursor);
+                buffer.putInt(message.index);
+                break;
+
+            case Message.KEYS_CHUNK:
+                buffer.putLong(message.cursor);
+                buffer.put((byte) (message.done ? 1 : 0));
+                buffer = putStrings(buffer, message.keys);
+                for (byte[] value : message.values) {
+                    buffer = putBytes(buffer, value);
+                }
+                break;
+
+            case Message.PUT:
+                buffer.putInt(message.index);
+                buffer = putString(buffer, message.name);
+                buffer = putBytes(buffer, message.value);
+                break;
+
+            case Message.GET:
+            case Message.DELETE:
+            case Message.FETCH:
+                buffer.putInt(message.index);
+                buffer = putString(buffer, message.name);
+                break;
+
+            case Message.VALUE:
+                buffer = putBytes(buffer, message.value);
+                break;
+
+            case Message.KEYS:
+                buffer = putStrings(buffer, message.keys);
+                break;
+
+            case Message.FIND_SUCCESSORS:
+                buffer = ensure(buffer, 4 + 8 * message.ids.length);
+                buffer.putInt(message.ids.length);
+                for (long id : message.ids) {
+                    buffer.putLong(id);
+                }
+                break;
+
+            case Message.NEIGHBORS:
+                buffer = putAddress(buffer, message.peer.address);
+                buffer = putPeers(buffer, message.peers);
+                break;
+
+            case Message.PEERS:
+                buffer = putPeers(buffer, message.peers);
+                break;
+        }
+
+        buffer.putInt(0, buffer.position() - 4);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+    * Decodes the message from a frame whose length has already been consumed.
+    *
+    * @param  frame
+    *         Buffer positioned at the opcode, limited to the end of the frame
+    * @return decoded message
+    * @throws IllegalArgumentException
+    *         if the frame is malformed
+    */
+    public static Message decode(ByteBuffer frame) {
+        try {
+            byte opcode = frame.get();
+
+            switch (opcode) {
+                case Message.FIND_SUCCESSOR:
+                case Message.FIND_PREDECESSOR:
+                case Message.NEXT_HOP:
+                    return new Message(opcode, frame.getLong());
+
+                case Message.TRANSFER_KEYS:
+                    return new Message(opcode, frame.getLong(), frame.getLong());
+
+                case Message.CHANGE_PREDECESSOR:
+                case Message.CHANGE_SUCCESSOR:
+                case Message.NOTIFY:
+                case Message.STABILIZE_EXCHANGE:
+                case Message.ADDRESS:
+                    return new Message(opcode, new Peer(getAddress(frame)));
+
+                case Message.UPDATE_ITH_FINGER:
+                    int index = frame.getInt();
+                    return new Message(opcode, index, new Peer(getAddress(frame)));
+
+                case Message.KEYS:
+                    return new Message(opcode, getStrings(frame));
+
+                case Message.TRANSFER_CHUNK:
+                    return new Message(opcode, frame.getLong(), frame.getLong(), frame.getLong(), frame.getInt());
+
+                case Message.KEYS_CHUNK:
+                    long cursor = frame.getLong();
+                    boolean done = frame.get() != 0;
+                    String[] keys = getStrings(frame);
+                    byte[][] values = new byte[keys.length][];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = getBytes(frame);
+                    }
+                    return new Message(opcode, keys, values, cursor, done);
+
+                case Message.PUT:
+                    int forwards = frame.getInt();
+                    String name = getString(frame);
+                    return new Message(opcode, name, getBytes(frame), forwards);
+
+                case Message.GET:
+                case Message.DELETE:
+                case Message.FETCH:
+                    forwards = frame.getInt();
+                    return new Message(opcode, getString(frame), null, forwards);
+
+                case Message.VALUE:
+                    return new Message(opcode, getBytes(frame));
+
+                case Message.FIND_SUCCESSORS:
+                    long[] ids = new long[frame.getInt()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = frame.getLong();
+                    }
+                    return new Message(opcode, ids);
+
+                case Message.NEIGHBORS:
+                    Peer predecessor = new Peer(getAddress(frame));
+                    return new Message(opcode, predecessor, getPeers(frame));
+
+                case Message.PEERS:
+                    return new Message(opcode, getPeers(frame));
+
+                case Message.YOUR_SUCCESSOR:
+                case Message.YOUR_PREDECESSOR:
+                case Message.YOUR_SUCCESSORS:
+                case Message.ALIVE:
+                case Message.DONE:
+                case Message.FAILED:
+                    return new Message(opcode);
+
+                default:
+                    return new Message(Message.UNKNOWN);
+            }
+        } catch (BufferUnderflowException | UnknownHostException e) {
+            throw new IllegalArgumentException("Malformed frame", e);
+        }
+    }
+
+    /**
+    * Makes sure that the buffer has room for some more bytes.
+    *
+    * @param  buffer
+    *         Buffer being written to
+    * @param  required
+    *         Number of bytes yet to be written
+    * @return the same buffer if it has room, a larger copy otherwise
+    */
+    private static ByteBuffer ensure(ByteBuffer buffer, int required) {
+        if (buffer.remaining() >= required) {
+            return buffer;
+        }
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + required);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        return larger.put(buffer);
+    }
+
+    private static ByteBuffer putAddress(ByteBuffer buffer, InetSocketAddress address) {
+        InetAddress inetAddress = address.getAddress();
+        byte[] ip = inetAddress == null ? new byte[0] : inetAddress.getAddress();
+        String hostname = inetAddress == null ? address.getHostString() : hostnameOf(inetAddress);
+        byte[] host = hostname.getBytes(StandardCharsets.UTF_8);
+
+        buffer = ensure(buffer, 1 + ip.length + 2 + 1 + host.length);
+        buffer.put((byte) ip.length);
+        buffer.put(ip);
+        buffer.putShort((short) address.getPort());
+        buffer.put((byte) host.length);
+        buffer.put(host);
+        return buffer;
+    }
+
+    private static InetSocketAddress getAddress(ByteBuffer frame) throws UnknownHostException {
+        byte[] ip = new byte[frame.get()];
+        frame.get(ip);
+        int port = frame.getShort() & 0xFFFF;
+        byte[] host = new byte[frame.get() & 0xFF];
+        frame.get(host);
+        String hostname = host.length == 0 ? null : new String(host, StandardCharsets.UTF_8);
+
+        if (ip.length == 0) {
+            return InetSocketAddress.createUnresolved(hostname, port);
+        }
+        // Hostname is attached as it is, without any lookup
+        return new InetSocketAddress(InetAddress.getByAddress(hostname, ip), port);
+    }
+
+    /**
+    * Finds the hostname an InetAddress was created with, without a reverse
+    * lookup.  Empty if it was created from the IP alone.
+    */
+    private static String hostnameOf(InetAddress inetAddress) {
+        String s = inetAddress.toString();
+        return s.substring(0, s.indexOf('/'));
+    }
+
+    private static ByteBuffer putPeers(ByteBuffer buffer, Peer[] peers) {
+        buffer = ensure(buffer, 4);
+        buffer.putInt(peers.length);
+        for (Peer peer : peers) {
+            buffer = putAddress(buffer, peer.address);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer putStrings(ByteBuffer buffer, String[] strings) {
+        buffer = ensure(buffer, 4);
+        buffer.putInt(strings.length);
+        for (String string : strings) {
+            buffer = putString(buffer, string);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name of " + bytes.length + " bytes is too long");
+        }
+
+        buffer = ensure(buffer, 2 + bytes.length);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    /**
+    * Writes an array of bytes preceded by its length, -1 for null.
+    */
+    private static ByteBuffer putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer = ensure(buffer, 4);
+            buffer.putInt(-1);
+            return buffer;
+        }
+
+        buffer = ensure(buffer, 4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    private static byte[] getBytes(ByteBuffer frame) {
+        int length = frame.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static Peer[] getPeers(ByteBuffer frame) throws UnknownHostException {
+        Peer[] peers = new Peer[frame.getInt()];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new Peer(getAddress(frame));
+        }
+        return peers;
+    }
+
+    private static String[] getStrings(ByteBuffer frame) {
+        String[] strings = new String[frame.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = getString(frame);
+        }
+        return strings;
+    }
+
+    private static String getString(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.getShort() & 0xFFFF];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**********************************************************************************************
+    *                                                                                            *
+    *                                     Text format                                            *
+    *                                                                                            *
+    **********************************************************************************************/
+
+
+    /**
+    * Presents the request in the text format, Command:Parameters.
+    *
+    * @param  request
+    *         Request to be presented
+    * @return request line, without the line separator
+    */
+    public static String toText(Message request) {
+        switch (request.opcode) {
+            case Message.YOUR_SUCCESSOR:
+                return "YourSuccessor";
+
+            case Message.YOUR_PREDECESSOR:
+                return "YourPredecessor";
+
+            case Message.FIND_SUCCESSOR:
+                return "FindSuccessor:" + request.id;
+
+            case Message.FIND_PREDECESSOR:
+                return "FindPredecessor:" + request.id;
+
+            case Message.CHANGE_PREDECESSOR:
+                return "ChangePredecessor:" + request.peer.toString();
+
+            case Message.CHANGE_SUCCESSOR:
+                return "ChangeSuccessor:" + request.peer.toString();
+
+            case Message.UPDATE_ITH_FINGER:
+                return "UpdateithFinger:" + request.index + ":" + request.peer.toString();
+
+            case Message.TRANSFER_KEYS:
+                return "TransferKeys:" + request.id + ":" + request.secondId;
+
+            case Message.NOTIFY:
+                return "Notify:" + request.peer.toString();
+
+            case Message.ALIVE:
+                return "Alive";
+
+            default:
+                throw new IllegalArgumentException("Request has no text format: " + request.opcode);
+        }
+    }
+
+    /**
+    * Parses a request line of the text format.
+    *
+    * @param  line
+    *         Request line, without the line separator
+    * @return decoded request, UNKNOWN if the command is not known
+    */
+    public static Message parseRequest(String line) {
+        int colon = line.indexOf(':');
+        String command = colon < 0 ? line : line.substring(0, colon);
+        String parameters = colon < 0 ? "" : line.substring(colon + 1);
+
+        switch (command) {
+            case "YourSuccessor":
+                return new Message(Message.YOUR_SUCCESSOR);
+
+            case "YourPredecessor":
+                return new Message(Message.YOUR_PREDECESSOR);
+
+            case "FindSuccessor":
+                return new Message(Message.FIND_SUCCESSOR, Long.parseLong(parameters));
+
+            case "FindPredecessor":
+                return new Message(Message.FIND_PREDECESSOR, Long.parseLong(parameters));
+
+            case "ChangePredecessor":
+                return new Message(Message.CHANGE_PREDECESSOR, parsePeer(parameters));
+
+            case "ChangeSuccessor":
+                return new Message(Message.CHANGE_SUCCESSOR, parsePeer(parameters));
+
+            case "UpdateithFinger":
+                colon = parameters.indexOf(':');
+                int index = Integer.parseInt(parameters.substring(0, colon));
+                Peer finger = parsePeer(parameters.substring(colon + 1));
+                return new Message(Message.UPDATE_ITH_FINGER, index, finger);
+
+            case "TransferKeys":
+                colon = parameters.indexOf(':');
+                return new Message(Message.TRANSFER_KEYS, Long.parseLong(parameters.substring(0, colon)),
+                                   Long.parseLong(parameters.substring(colon + 1)));
+
+            case "Notify":
+                return new Message(Message.NOTIFY, parsePeer(parameters));
+
+            case "Alive":
+                return new Message(Message.ALIVE);
+
+            default:
+                return new Message(Message.UNKNOWN);
+        }
+    }
+
+    /**
+    * Parses a node presented by InetSocketAddress.toString().
+    */
+    private static Peer parsePeer(String s) {
+        return new Peer(NodeUtility.parseInetSocketAddress(s));
+    }
+
+    /**
+    * Presents the response in the text format.
+    *
+    * @param  response
+    *         Response to be presented
+    * @return response line, without the line separator
+    */
+    public static String toTextResponse(Message response) {
+        switch (response.opcode) {
+            case Message.ADDRESS:
+                return response.peer.toString();
+
+            case Message.KEYS:
+            case Message.KEYS_CHUNK:
+                return String.join(":", response.keys);
+
+            default:
+                return "Done";
+        }
+    }
+
+    /**
+    * Parses a response line of the text format.  As the text format does
+    * not tell the kind of the response, it is decided by the request.
+    *
+    * @param  request
+    *         Request for which the response has been received
+    * @param  line
+    *         Response line, without the line separator
+    * @return decoded response
+    */
+    public static Message parseResponse(Message request, String line) {
+        switch (request.opcode) {
+            case Message.YOUR_SUCCESSOR:
+            case Message.YOUR_PREDECESSOR:
+            case Message.FIND_SUCCESSOR:
+            case Message.FIND_PREDECESSOR:
+                return new Message(Message.ADDRESS, parsePeer(line));
+
+            case Message.TRANSFER_KEYS:
+                return new Message(Message.KEYS, line.isEmpty() ? new String[0] : line.split(":"));
+
+            default:
+                return new Message(Message.DONE);
+        }
+    }
+}
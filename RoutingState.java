@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+* This class implements the snapshot of the routing state of a node, i.e,
+* its predecessor, finger table and nearest successors, kept next to the
+* snapshots of its keys.  A node restarting with the same address finds
+* its place in the ring from the snapshot, instead of looking up every
+* finger and updating the fingers of the others once more.  Entries of the
+* snapshot are taken as hints only, and are validated after the node has
+* started, see Node.
+*
+* Snapshot is written periodically, whenever the state has changed, and
+* once more when the node stops.
+*
+*       | bits : int | predecessor | fingers : int | finger ... | successors : int | successor ... |
+*
+* where every node is written as its address in the text format.
+*
+* @author Vijay Kumar
+*/
+
+public class RoutingState extends PeriodicTask {
+    // Node whose routing state is written
+    private final Node node;
+
+    // File holding the snapshot
+    private final Path file;
+
+    // Snapshot last written, so that an unchanged state is not written again
+    private byte[] lastWritten;
+
+    // Predecessor of the node when the snapshot was loaded
+    public Peer predecessor;
+
+    // Finger table of the node when the snapshot was loaded
+    public Peer[] fingers;
+
+    // Nearest successors of the node when the snapshot was loaded
+    public Peer[] successors;
+
+    /**
+    * Initializes the object.
+    */
+    RoutingState(Node node, Path directory) {
+        super(NodeUtility.ROUTING_SNAPSHOT_INTERVAL);
+        this.node = node;
+        this.file = directory.resolve("routing");
+    }
+
+    /**
+    * Loads the snapshot written before the node was last stopped.
+    *
+    * @return true, if a snapshot for the present size of the identifier space was found
+    *         false, otherwise
+    */
+    public boolean load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != NodeUtility.NUMBER_OF_AVAILABLE_BITS) {
+                return false;
+            }
+
+            predecessor = readPeer(in);
+            fingers = new Peer[in.readInt()];
+            for (int i = 0; i < fingers.length; i++) {
+                fingers[i] = readPeer(in);
+            }
+            successors = new Peer[in.readInt()];
+            for (int i = 0; i < successors.length; i++) {
+                successors[i] = readPeer(in);
+            }
+            return fingers.length == NodeUtility.NUMBER_OF_AVAILABLE_BITS;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Routing state could not be loaded from " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+    * Writes the present routing state of the node, unless it is the same
+    * as the one written last.
+    *
+    * @return true, if the state has been written
+    *         false, if it has not changed
+    * @throws IOException
+    *         if the snapshot could not be written
+    */
+    public boolean save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        synchronized(node) {
+            out.writeInt(NodeUtility.NUMBER_OF_AVAILABLE_BITS);
+            writePeer(out, node.getPredecessor());
+            out.writeInt(node.fingers.length);
+            for (Peer finger : node.fingers) {
+                writePeer(out, finger);
+            }
+        }
+
+        Peer[] successors = node.nearestSuccessors == null ? new Peer[0] : node.nearestSuccessors.successors.clone();
+        out.writeInt(successors.length);
+        for (Peer successor : successors) {
+            writePeer(out, successor == null ? node.getSuccessor() : successor);
+        }
+
+        byte[] snapshot = bytes.toByteArray();
+        if (Arrays.equals(snapshot, lastWritten)) {
+            return false;
+        }
+
+        Path temporary = file.resolveSibling("routing.tmp");
+        try (BufferedOutputStream stream = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            stream.write(snapshot);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        lastWritten = snapshot;
+        return true;
+    }
+
+    /**
+    * Stops the task, and writes the routing state a last time.
+    */
+    @Override
+    public void stop() {
+        super.stop();
+
+        try {
+            save();
+        } catch (IOException e) {
+            System.err.println("Routing state could not be written: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected boolean writesToDisk() {
+        return true;
+    }
+
+    @Override
+    protected boolean runOnce() {
+        try {
+            return save();
+        } catch (IOException e) {
+            System.err.println("Routing state could not be written: " + e.getMessage());
+            return true;
+        }
+    }
+
+    private static void writePeer(DataOutputStream out, Peer peer) throws IOException {
+        out.writeUTF(peer.toString());
+    }
+
+    private static Peer readPeer(DataInputStream in) throws IOException {
+        return new Peer(NodeUtility.parseInetSocketAddress(in.readUTF()));
+    }
+}
@@ -1,12 +1,19 @@
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
 
 /**
 * This class implements a server which listens to the request on behalf 
-* of a particular node in the chord ring.  Multi-threaded approach for 
-* the server has been considered wherein requests are served in a child
-* server, i.e, a different thread.  
+* of a particular node in the chord ring.  Accepted connections are handed
+* over, in round robin fashion, to a fixed number of event loops which read
+* the requests and write the responses without blocking.  Requests that can
+* be answered from the state of the node are served by the event loop itself,
+* whereas those which have to wait on a remote call are given to a bounded
+* pool of workers, so that no platform thread is created per request.  With
+* virtual threads selected, such requests get a virtual thread each instead.
 * 
 * @author Vijay Kumar
 */
@@ -15,14 +22,21 @@ public class Server implements Runnable {
     // Node on the behalf of which server will listen to the request 
     private Node node; 
     
-    // ServerSocket at which server will listen to the request 
-    private ServerSocket serverSocket; 
+    // Channel at which server will listen to the request
+    private ServerSocketChannel serverChannel;
+    
+    // Event loops serving the accepted connections
+    private EventLoop[] eventLoops;
+    
+    // Workers serving the requests which block on a remote call
+    private ExecutorService workers;
     
     // Flag that will determine when to stop the thread 
     private volatile boolean active;
     
     /**
-    * Constructor to initialize the fields and start the serversocket.
+    * Constructor to initialize the fields, start the event loops and
+    * bind the server channel.
     * 
     * @param node 
     *        Node on behalf of which this will listen to the request
@@ -33,8 +47,19 @@ public class Server implements Runnable {
         int port = address.getPort(); 
         active = true; 
         
+        workers = NodeUtility.newWorkerPool(NodeUtility.VIRTUAL_THREADS);
+        
+        ChildServer childServer = new ChildServer(node);
+        eventLoops = new EventLoop[NodeUtility.NUMBER_OF_EVENT_LOOPS];
+        
         try {
-            serverSocket = new ServerSocket(port); 
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(childServer, workers);
+                new Thread(eventLoops[i], "EventLoop-" + port + "-" + i).start();
+            }
+            
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -45,20 +70,35 @@ public class Server implements Runnable {
     */
     public void stop() {
         active = false; 
+        
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+        workers.shutdown();
     }
     
     /**
-    * The run method where the server listens to the request 
-    * and creates new child server to serve the same. 
+    * The run method where the server accepts the connections and
+    * hands them over to the event loops.
     */
     @Override
     public void run() {
+        int next = 0;
+        
         try {
             while (active) {
-                Socket socket = serverSocket.accept(); 
-                new Thread(new ChildServer(node, socket)).start();
+                SocketChannel channel = serverChannel.accept();
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
             }
-            serverSocket.close();
+        } catch (ClosedChannelException e) {
+            // Server has been stopped while waiting for a connection
         } catch (Exception e) {
             e.printStackTrace();
         }
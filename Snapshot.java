@@ -0,0 +1,227 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* This class implements the periodic snapshots of the keys stored by a
+* node, so that a restart loads the latest snapshot and replays only the
+* write ahead log written since, instead of the whole history.
+*
+* A snapshot starts the next generation N of the log, then writes all the
+* keys to snapshot-N.  Keys changed meanwhile may be written either before
+* or after the change, which is harmless, since replaying generation N and
+* later applies those changes once more, in order.  Once snapshot-N is
+* complete, the generations of the log and the snapshots before N are
+* deleted.
+*
+*       | nameLength : int | name | valueLength : int | value | ... | -1 : int |
+*
+* @author Vijay Kumar
+*/
+
+public class Snapshot extends PeriodicTask {
+    // Number of keys copied out of the store at a time
+    private static final int CHUNK_SIZE = 1024;
+
+    // Directory holding the snapshots and the log
+    private final Path directory;
+
+    // Store whose keys are written
+    private final KeyStore store;
+
+    // Log of the changes to the store
+    private final WriteAheadLog log;
+
+    // Number of records in the log at the last snapshot
+    private long lastAppended;
+
+    /**
+    * Initializes the object.
+    */
+    Snapshot(Path directory, KeyStore store, WriteAheadLog log) {
+        super(NodeUtility.SNAPSHOT_INTERVAL);
+        this.directory = directory;
+        this.store = store;
+        this.log = log;
+        this.lastAppended = log.getAppended();
+    }
+
+    /**
+    * Stops the task, and makes the changes appended so far durable.
+    */
+    @Override
+    public void stop() {
+        super.stop();
+        log.sync();
+    }
+
+    /**
+    * Writes a snapshot of the store, and deletes the log and the snapshots
+    * it makes redundant.
+    *
+    * @throws IOException
+    *         if the snapshot could not be written
+    */
+    public void take() throws IOException {
+        int generation = log.rotate();
+        Path file = fileOf(directory, generation);
+        Path temporary = directory.resolve("snapshot-" + generation + ".tmp");
+
+        try (FileOutputStream stream = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            long cursor = NodeUtility.KEY_MASK;
+
+            // Starting at the largest key, the first range covers the whole ring
+            while (true) {
+                List<String> names = new ArrayList<>();
+                List<byte[]> values = new ArrayList<>();
+                long last = store.collectRange(cursor, NodeUtility.KEY_MASK, CHUNK_SIZE, names, values);
+
+                for (int i = 0; i < names.size(); i++) {
+                    byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeInt(values.get(i).length);
+                    out.write(values.get(i));
+                }
+
+                if (names.isEmpty() || last == NodeUtility.KEY_MASK) {
+                    break;
+                }
+                cursor = last;
+            }
+            out.writeInt(-1);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path older : generations(directory, "snapshot-", "")) {
+            if (generationOf(older, "snapshot-", "") < generation) {
+                Files.deleteIfExists(older);
+            }
+        }
+        for (Path older : generations(directory, "wal-", ".log")) {
+            if (generationOf(older, "wal-", ".log") < generation) {
+                Files.deleteIfExists(older);
+            }
+        }
+    }
+
+    /**
+    * Loads the latest snapshot in the directory into the store, and replays
+    * the generations of the log written since.
+    *
+    * @param  directory
+    *         Directory holding the snapshots and the log
+    * @param  store
+    *         Store to which the keys are loaded
+    * @return generation of the log to be appended to from now on
+    * @throws IOException
+    *         if the directory could not be read
+    */
+    public static int recover(Path directory, KeyStore store) throws IOException {
+        Files.createDirectories(directory);
+        int snapshot = 0;
+        int latest = 0;
+
+        for (Path file : generations(directory, "snapshot-", "")) {
+            snapshot = Math.max(snapshot, generationOf(file, "snapshot-", ""));
+        }
+        if (snapshot > 0) {
+            load(fileOf(directory, snapshot), store);
+        }
+
+        List<Path> logs = generations(directory, "wal-", ".log");
+        logs.sort((a, b) -> Integer.compare(generationOf(a, "wal-", ".log"), generationOf(b, "wal-", ".log")));
+        for (Path file : logs) {
+            int generation = generationOf(file, "wal-", ".log");
+            latest = Math.max(latest, generation);
+
+            if (generation >= snapshot) {
+                WriteAheadLog.replay(file, store);
+            }
+        }
+
+        // A fresh generation, so that nothing is appended after a torn record
+        return Math.max(snapshot, latest) + 1;
+    }
+
+    @Override
+    protected boolean writesToDisk() {
+        return true;
+    }
+
+    @Override
+    protected boolean runOnce() {
+        long appended = log.getAppended();
+        if (appended == lastAppended) {
+            return false;
+        }
+
+        try {
+            take();
+            lastAppended = appended;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Snapshot could not be written: " + e.getMessage());
+            return true;
+        }
+    }
+
+    private static void load(Path file, KeyStore store) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int length;
+            while ((length = in.readInt()) >= 0) {
+                byte[] name = new byte[length];
+                in.readFully(name);
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                store.put(new String(name, StandardCharsets.UTF_8), value);
+            }
+        }
+    }
+
+    private static Path fileOf(Path directory, int generation) {
+        return directory.resolve("snapshot-" + generation);
+    }
+
+    /**
+    * Finds the files of the directory named prefix, a generation and suffix.
+    */
+    private static List<Path> generations(Path directory, String prefix, String suffix) throws IOException {
+        List<Path> files = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : stream) {
+                if (generationOf(file, prefix, suffix) >= 0) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+    * Finds the generation in the name of a file, -1 if it has none.
+    */
+    private static int generationOf(Path file, String prefix, String suffix) {
+        String name = file.getFileName().toString();
+
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
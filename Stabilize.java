@@ -1,79 +1,125 @@
-import java.net.InetSocketAddress;
-
 /** 
 * Implements a stabilizer for node which takes care of the updation of 
 * successor of a node in the case of failures.  Hypothesis of the chord 
 * protocol says that once the successor pointers are correct, lookup will
 * eventually be correct. 
 * 
+* A round is a single StabilizeExchange, which notifies the successor and
+* brings back its predecessor along with its nearest successors.  A
+* successor which does not know the request, either a text-only node or
+* an older binary one, is asked YourPredecessor and notified separately.
+* 
 * @author Vijay Kumar 
 */
 
-public class Stabilize implements Runnable {
+public class Stabilize extends PeriodicTask {
     /**
     * Node whose successor is to be maintained.
     */
     private Node node; 
     
-    /**
-    * Boolean value to keep track of when to stop. Kept as volatile 
-    * so that the value of active is always checked from the main 
-    * memory instead of storing it in a cache. 
-    */
-    private volatile boolean active; 
+    // Last successor found not to know StabilizeExchange, so that it is not asked again
+    private Peer olderSuccessor;
     
     /**
     * Initializes the object
     */
     Stabilize(Node node) {
+        super(NodeUtility.STABILIZE_INTERVAL, NodeUtility.MAINTENANCE_MAX_INTERVAL); 
         this.node = node; 
-        this.active = true; 
     }
     
     /**
-    * Stops the thread
+    * Stops the task
     */
+    @Override
     public void stop() {
-        this.active = false; 
+        super.stop(); 
+        System.out.printf("Thread Stabilize has stopped functioning.\n"); 
     }
     
+    /**
+    * Checks the predecessor of the successor, and notifies the successor. 
+    * A handover of keys which has stopped is resumed as well. 
+    * 
+    * @return true, if the successor has changed or could not be reached 
+    *         false, otherwise
+    */
     @Override
-    public void run() {
-        while (active) {
-            String response = NodeUtility.processRequest(node.getSuccessor(), "YourPredecessor"); 
+    protected boolean runOnce() {
+        node.resumeHandover(); 
+        Peer successor = node.getSuccessor();
+        
+        if (!successor.equals(olderSuccessor)) {
+            Message response = NodeUtility.processRequest(successor, new Message(Message.STABILIZE_EXCHANGE, node.peer), 
+                                                          NodeUtility.MAINTENANCE_TIMEOUT);
             
-            if (response == null) {
-                InetSocketAddress successor = node.nearestSuccessors.nextSuccessor();
-                node.changeSuccessor(successor); 
-            } else {
-                InetSocketAddress potentialSuccessor = NodeUtility.parseInetSocketAddress(response); 
-                int currentSuccessorKey = NodeUtility.hashValue(node.getSuccessor()); 
-                int potentialSuccessorKey = NodeUtility.hashValue(potentialSuccessor); 
-                
-                // Checks whether predecessor of its successor could be its new successor. 
-                if (NodeUtility.belongs(node.key, false, currentSuccessorKey, false, potentialSuccessorKey)) {
-                    node.changeSuccessor(potentialSuccessor); 
-                    
-                    /**
-                    * Since the successor has been modified, the immediate successor is to be 
-                    * changed in the successor list of object NearestSuccessors. Once the immediate
-                    * successor has been made correct, as per the hypothesis, all successors 
-                    * would eventually become correct. 
-                    */
-                    node.nearestSuccessors.successors[0] = potentialSuccessor; 
-                }
+            if (response != null && response.opcode == Message.NEIGHBORS) {
+                return exchanged(successor, response.peer, response.peers);
+            } else if (response != null) {
+                olderSuccessor = successor;
+            }
+        }
+        
+        boolean changed = false; 
+        Peer potentialSuccessor = NodeUtility.requestPeer(successor, new Message(Message.YOUR_PREDECESSOR), 
+                                                          NodeUtility.MAINTENANCE_TIMEOUT);
+        
+        if (potentialSuccessor == null) {
+            successor = node.nearestSuccessors.nextSuccessor();
+            node.changeSuccessor(successor); 
+            changed = true; 
+        } else {
+            // A text-only successor fails StabilizeExchange, yet answers YourPredecessor
+            if (NodeUtility.isTextOnly(successor)) {
+                olderSuccessor = successor;
             }
             
-            // Notifies the successor about its presence. 
-            NodeUtility.processRequest(node.getSuccessor(), "Notify:" + node.address.toString()); 
-            
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException exception) {
-                exception.printStackTrace();
+            // Checks whether predecessor of its successor could be its new successor. 
+            if (NodeUtility.belongs(node.key, false, node.getSuccessor().key, false, potentialSuccessor.key)) {
+                node.changeSuccessor(potentialSuccessor); 
+                
+                /**
+                * Since the successor has been modified, the immediate successor is to be 
+                * changed in the successor list of object NearestSuccessors. Once the immediate
+                * successor has been made correct, as per the hypothesis, all successors 
+                * would eventually become correct. 
+                */
+                node.nearestSuccessors.successors[0] = potentialSuccessor; 
+                changed = true; 
             }
         }
         
-        System.out.printf("Thread Stabilize has stopped functioning.\n"); 
+        // Notifies the successor about its presence. 
+        Message response = NodeUtility.processRequest(node.getSuccessor(), new Message(Message.NOTIFY, node.peer), 
+                                                      NodeUtility.MAINTENANCE_TIMEOUT); 
+        return changed || response == null; 
+    }
+    
+    /**
+    * Takes over the answer of a StabilizeExchange.  A node found between
+    * this node and its successor becomes the successor, to be notified in
+    * the next round, followed by the old successor and its list.
+    * 
+    * @param  successor
+    *         Reference to the successor which has answered
+    * @param  potentialSuccessor
+    *         Reference to the predecessor of the successor
+    * @param  list
+    *         nearest successors of the successor
+    * @return true, if the successor or the successor list has changed
+    *         false, otherwise
+    */
+    private boolean exchanged(Peer successor, Peer potentialSuccessor, Peer[] list) {
+        if (NodeUtility.belongs(node.key, false, successor.key, false, potentialSuccessor.key)) {
+            node.changeSuccessor(potentialSuccessor);
+            
+            Peer[] shifted = new Peer[list.length + 1];
+            shifted[0] = successor;
+            System.arraycopy(list, 0, shifted, 1, list.length);
+            node.nearestSuccessors.adopt(potentialSuccessor, shifted);
+            return true;
+        }
+        return node.nearestSuccessors.adopt(successor, list);
     }
-} 
\ No newline at end of file
+} 
@@ -0,0 +1,274 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* This class implements an arena for the keys stored by a node along with
+* their values.  Every key is copied as a record, i.e, the lengths of its
+* name and value followed by the name and value themselves, one after
+* another into large slabs of memory outside the heap.  Millions of keys
+* thus make up a few buffers which the garbage collector never looks into,
+* instead of a string and an array each.  A record is referred to by its
+* handle, i.e, the index of its slab in the upper half and its offset
+* within the slab in the lower.
+*
+*       | nameLength : int | valueLength : int | name | value |
+*
+* Space of a record which has been released is not reused, but accounted
+* as garbage until the arena is compacted, i.e, the records still in use
+* slide towards the first slab within the slabs already allocated.  Slabs
+* are thus not allocated beyond the given capacity, not even to compact.
+* A record larger than a slab gets a slab of its own.
+*
+* Not thread safe, the store owning the arena guards it.
+*
+* @author Vijay Kumar
+*/
+
+public class ValueArena {
+    // Handle given back when a record does not fit within the capacity
+    public static final long FULL = -1;
+
+    // Size in bytes of the lengths preceding a record
+    private static final int HEADER = 8;
+
+    // Size in bytes of a slab
+    private final int slabSize;
+
+    // Maximum number of bytes taken by the slabs
+    private final long capacity;
+
+    // Slabs holding the records, the last one being filled
+    private final List<ByteBuffer> slabs;
+
+    // Offset of the free space in the last slab
+    private int position;
+
+    // Bytes taken by the slabs
+    private long allocated;
+
+    // Bytes taken by the records which have been released
+    private long garbage;
+
+    /**
+    * Initializes the arena.
+    *
+    * @param slabSize
+    *        Size in bytes of a slab
+    * @param capacity
+    *        Maximum number of bytes taken by the slabs
+    */
+    public ValueArena(int slabSize, long capacity) {
+        this.slabSize = slabSize;
+        this.capacity = capacity;
+        this.slabs = new ArrayList<>();
+        this.position = slabSize;
+    }
+
+    /**
+    * Copies a key along with its value into the arena.
+    *
+    * @param  name
+    *         name of the key, encoded in UTF-8
+    * @param  value
+    *         value of the key
+    * @return handle of the record,
+    *         FULL, if the arena has no room for it
+    */
+    public long allocate(byte[] name, byte[] value) {
+        int required = HEADER + name.length + value.length;
+        ByteBuffer slab = reserve(required);
+
+        if (slab == null) {
+            return FULL;
+        }
+
+        int offset = position;
+        slab.putInt(offset, name.length);
+        slab.putInt(offset + 4, value.length);
+        slab.put(offset + HEADER, name);
+        slab.put(offset + HEADER + name.length, value);
+        position += required;
+        return (long) (slabs.size() - 1) << 32 | offset;
+    }
+
+    /**
+    * Checks whether a record is that of the given key.
+    *
+    * @param  handle
+    *         handle of the record
+    * @param  name
+    *         name of the key, encoded in UTF-8
+    * @return true, if the record holds the key
+    *         false, otherwise
+    */
+    public boolean hasName(long handle, byte[] name) {
+        ByteBuffer slab = slabOf(handle);
+        int offset = (int) handle;
+
+        if (slab.getInt(offset) != name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length; i++) {
+            if (slab.get(offset + HEADER + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+    * Copies the name of the key out of a record.
+    *
+    * @param  handle
+    *         handle of the record
+    * @return name of the key
+    */
+    public String name(long handle) {
+        ByteBuffer slab = slabOf(handle);
+        int offset = (int) handle;
+        byte[] name = new byte[slab.getInt(offset)];
+
+        slab.get(offset + HEADER, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+    * Copies the value of the key out of a record.
+    *
+    * @param  handle
+    *         handle of the record
+    * @return value of the key
+    */
+    public byte[] value(long handle) {
+        ByteBuffer slab = slabOf(handle);
+        int offset = (int) handle;
+        byte[] value = new byte[slab.getInt(offset + 4)];
+
+        slab.get(offset + HEADER + slab.getInt(offset), value);
+        return value;
+    }
+
+    /**
+    * Releases a record which is no longer referred to.
+    *
+    * @param handle
+    *        handle of the record
+    */
+    public void release(long handle) {
+        ByteBuffer slab = slabOf(handle);
+        int offset = (int) handle;
+
+        garbage += HEADER + slab.getInt(offset) + slab.getInt(offset + 4);
+    }
+
+    /**
+    * Slides the records still in use towards the first slab, in the order
+    * of their handles, and gives back the slabs left empty.  A record never
+    * moves past its own position, so the records are moved within the slabs
+    * already allocated, without taking any memory beyond them.
+    *
+    * @param  handles
+    *         handles of the records still in use, in ascending order
+    * @return handles of the records after compaction, in the same order
+    */
+    public long[] compact(long[] handles) {
+        long[] moved = new long[handles.length];
+        int slab = 0;
+        int offset = 0;
+
+        for (int i = 0; i < handles.length; i++) {
+            ByteBuffer from = slabOf(handles[i]);
+            int source = (int) handles[i];
+            int required = HEADER + from.getInt(source) + from.getInt(source + 4);
+
+            while (offset + required > slabs.get(slab).capacity()) {
+                slab++;
+                offset = 0;
+            }
+
+            ByteBuffer to = slabs.get(slab);
+            if (to != from || offset + required <= source) {
+                to.put(offset, from, source, required);
+            } else if (offset != source) {
+                // Record overlaps its new place, so it is copied out first
+                byte[] record = new byte[required];
+                from.get(source, record);
+                to.put(offset, record);
+            }
+            moved[i] = (long) slab << 32 | offset;
+            offset += required;
+        }
+
+        int used = handles.length == 0 ? 0 : slab + 1;
+        while (slabs.size() > used) {
+            allocated -= slabs.remove(slabs.size() - 1).capacity();
+        }
+        position = used == 0 ? slabSize : offset;
+        garbage = 0;
+        return moved;
+    }
+
+    /**
+    * Checks whether compacting the arena would give back a worthwhile
+    * amount of memory, i.e, half of it or more.
+    *
+    * @return true, if the arena is worth compacting
+    *         false, otherwise
+    */
+    public boolean needsCompaction() {
+        return garbage >= slabSize && garbage * 2 >= allocated;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+    * Finds the number of bytes taken by the slabs.
+    *
+    * @return bytes allocated
+    */
+    public long allocatedBytes() {
+        return allocated;
+    }
+
+    /**
+    * Finds the number of bytes taken by the records which have been released.
+    *
+    * @return bytes of garbage
+    */
+    public long garbageBytes() {
+        return garbage;
+    }
+
+    /**
+    * Finds the slab with room for a record of the given size, allocating a
+    * new one if the last slab is full.
+    *
+    * @return slab to be written to,
+    *         null, if a new slab would go beyond the capacity
+    */
+    private ByteBuffer reserve(int required) {
+        if (position + required <= slabSize) {
+            return slabs.get(slabs.size() - 1);
+        }
+
+        int size = Math.max(slabSize, required);
+        if (allocated + size > capacity) {
+            return null;
+        }
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(size);
+        slabs.add(slab);
+        allocated += size;
+        position = 0;
+        return slab;
+    }
+
+    private ByteBuffer slabOf(long handle) {
+        return slabs.get((int) (handle >>> 32));
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+* This class implements the write ahead log of the keys stored by a node.
+* Every change to the store is appended as a record, and the log is made
+* durable before a Put or Delete is answered, so that the keys survive a
+* restart of the node.
+*
+* Records are first gathered in memory.  A writer which needs them to be
+* durable either finds a flush in progress and waits for it, or flushes
+* everything gathered so far itself, with a single fsync.  Concurrent
+* writers are thus made durable together, a group commit, rather than with
+* an fsync each.
+*
+*       | length : int | crc : int | operation : byte | fields of the operation |
+*
+* where length counts the bytes following the checksum.  A record torn by
+* a crash fails its checksum, and the log is replayed up to it.  Log is
+* split in generations, wal-N.log, so that those older than the latest
+* snapshot can be deleted, see Snapshot.
+*
+* @author Vijay Kumar
+*/
+
+public class WriteAheadLog {
+    // Stores the value of a key. Fields: name, value
+    private static final byte PUT = 1;
+
+    // Removes a key. Fields: name
+    private static final byte DELETE = 2;
+
+    // Removes the keys in the range (left, right]. Fields: left, right
+    private static final byte REMOVE_RANGE = 3;
+
+    // Directory holding the generations of the log
+    private final Path directory;
+
+    // Generation being appended to
+    private int generation;
+
+    private FileChannel channel;
+
+    // Records gathered since the last flush
+    private ByteBuffer pending;
+
+    // Buffer handed back by the last flush, to be reused for gathering
+    private ByteBuffer spare;
+
+    // Number of records appended, and of those made durable
+    private long appended;
+
+    private long durable;
+
+    // Whether a writer is flushing the records at the moment
+    private boolean flushing;
+
+    // Whether a flush has failed, after which no write is taken to be durable until the log is rotated
+    private boolean failed;
+
+    // Number of fsyncs made
+    private long syncs;
+
+    /**
+    * Opens the given generation of the log for appending.
+    *
+    * @param  directory
+    *         Directory holding the generations of the log
+    * @param  generation
+    *         Generation to be appended to
+    * @throws IOException
+    *         if the log could not be opened
+    */
+    public WriteAheadLog(Path directory, int generation) throws IOException {
+        this.directory = directory;
+        this.generation = generation;
+        this.channel = open(directory, generation);
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.spare = ByteBuffer.allocate(64 * 1024);
+    }
+
+    /**
+    * Appends a record storing the value of a key.
+    */
+    public synchronized void appendPut(String name, byte[] value) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int start = begin(PUT, 8 + bytes.length + value.length);
+        pending.putInt(bytes.length).put(bytes).putInt(value.length).put(value);
+        end(start);
+    }
+
+    /**
+    * Appends a record removing a key.
+    */
+    public synchronized void appendDelete(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int start = begin(DELETE, 4 + bytes.length);
+        pending.putInt(bytes.length).put(bytes);
+        end(start);
+    }
+
+    /**
+    * Appends a record removing the keys in the range (left, right].
+    */
+    public synchronized void appendRemoveRange(long left, long right) {
+        int start = begin(REMOVE_RANGE, 16);
+        pending.putLong(left).putLong(right);
+        end(start);
+    }
+
+    /**
+    * Makes all the records appended so far durable, either by waiting for
+    * the flush in progress if it covers them, or by flushing them along
+    * with those of the other writers.
+    *
+    * @return true, if the records are durable
+    *         false, if the log could not be written
+    */
+    public boolean sync() {
+        ByteBuffer batch;
+        FileChannel out;
+        long target;
+
+        synchronized(this) {
+            target = appended;
+            while (flushing && durable < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            if (failed || durable >= target) {
+                return !failed;
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            target = appended;
+            out = channel;
+        }
+
+        boolean written = false;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                out.write(batch);
+            }
+            out.force(false);
+            written = true;
+        } catch (IOException e) {
+            System.err.println("Write ahead log could not be written, writes fail until the next snapshot: " 
+                               + e.getMessage());
+        } finally {
+            synchronized(this) {
+                spare = batch.clear();
+                if (written) {
+                    durable = target;
+                    syncs++;
+                } else {
+                    failed = true;
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+        return written;
+    }
+
+    /**
+    * Makes the records appended so far durable and starts the next
+    * generation of the log.  Records appended from now on go to the new
+    * generation.  A log whose flush has failed takes writes again once
+    * rotated, as the snapshot following the rotation covers the records
+    * lost with the flush.
+    *
+    * @return new generation
+    * @throws IOException
+    *         if the log could not be written
+    */
+    public synchronized int rotate() throws IOException {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        try {
+            pending.flip();
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            pending.clear();
+            channel.force(false);
+            channel.close();
+            durable = appended;
+
+            generation++;
+            channel = open(directory, generation);
+        } catch (IOException e) {
+            pending.clear();
+            failed = true;
+            throw e;
+        }
+
+        failed = false;
+        return generation;
+    }
+
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+
+    /**
+    * Makes the records appended so far durable and closes the log.
+    */
+    public void close() {
+        sync();
+        synchronized(this) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Log is being discarded anyway
+            }
+        }
+    }
+
+    /**
+    * Applies the records of a generation of the log to the store, in the
+    * order they were appended.  Replay stops at the first record which is
+    * torn or corrupt, as one being written when the node stopped.
+    *
+    * @param  file
+    *         Generation of the log to be replayed
+    * @param  store
+    *         Store to which the records are applied
+    * @return number of records applied
+    * @throws IOException
+    *         if the log could not be read
+    */
+    public static long replay(Path file, KeyStore store) throws IOException {
+        long records = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            CRC32 crc = new CRC32();
+
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                switch (buffer.get()) {
+                    case PUT:
+                        store.put(getString(buffer), getBytes(buffer));
+                        break;
+
+                    case DELETE:
+                        store.remove(getString(buffer));
+                        break;
+
+                    case REMOVE_RANGE:
+                        store.removeRange(buffer.getLong(), buffer.getLong());
+                        break;
+                }
+                records++;
+            }
+        }
+        return records;
+    }
+
+    /**
+    * Finds the file holding a generation of the log.
+    */
+    public static Path fileOf(Path directory, int generation) {
+        return directory.resolve("wal-" + generation + ".log");
+    }
+
+    private static FileChannel open(Path directory, int generation) throws IOException {
+        return FileChannel.open(fileOf(directory, generation), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+    * Starts a record with room for the given number of bytes of fields,
+    * leaving the checksum to be filled once the fields have been written.
+    *
+    * @return offset of the record in the pending buffer
+    */
+    private int begin(byte operation, int fields) {
+        int required = 4 + 4 + 1 + fields;
+        if (pending.remaining() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + required));
+            pending.flip();
+            pending = larger.put(pending);
+        }
+
+        int start = pending.position();
+        pending.putInt(1 + fields);
+        pending.putInt(0);
+        pending.put(operation);
+        return start;
+    }
+
+    /**
+    * Fills the checksum of the record written from the given offset on.
+    */
+    private void end(int start) {
+        CRC32 crc = new CRC32();
+        crc.update(pending.array(), start + 8, pending.position() - start - 8);
+        pending.putInt(start + 4, (int) crc.getValue());
+        appended++;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        return new String(getBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}